@@ -11,6 +11,9 @@ import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.IntField;
+import simpledb.storage.LockManager;
+import simpledb.storage.LockStats;
+import simpledb.storage.PageId;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
@@ -584,7 +587,36 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = {"select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into"};
+            "insert", "delete", "values", "into", "locks"};
+
+    /** Number of tables and pages the locks command lists. */
+    static final int HOT_LOCKS = 10;
+
+    /**
+     * Prints the lock manager's contention counters: the totals, then the
+     * tables and pages transactions waited longest for.
+     */
+    public void printLockReport() {
+        LockManager lm = Database.getBufferPool().lockManager;
+        System.out.println("all locks: " + lm.getStats());
+
+        List<Map.Entry<Integer, LockStats>> tables = new ArrayList<>(lm.getTableStats().entrySet());
+        tables.sort(Comparator.comparingLong((Map.Entry<Integer, LockStats> e) -> e.getValue().getTotalWaitNanos())
+                .reversed());
+        for (Map.Entry<Integer, LockStats> e : tables.subList(0, Math.min(HOT_LOCKS, tables.size()))) {
+            String name;
+            try {
+                name = Database.getCatalog().getTableName(e.getKey());
+            } catch (NoSuchElementException ex) {
+                name = String.valueOf(e.getKey());
+            }
+            System.out.println("table " + name + ": " + e.getValue());
+        }
+        for (Map.Entry<PageId, LockStats> e : lm.getHotPages(HOT_LOCKS)) {
+            System.out.println("page " + e.getKey().getPageNumber() + " of table " + e.getKey().getTableId()
+                    + ": " + e.getValue());
+        }
+    }
 
     public static void main(String[] argv) throws IOException {
 
@@ -684,6 +716,12 @@ public class Parser {
                         quit = true;
                         break;
                     }
+                    if (cmd.equalsIgnoreCase("locks;")) {
+                        printLockReport();
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.MappedHeapFile;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -163,11 +164,28 @@ public class Catalog {
      */
     public void clear() {
         // TODO: some code goes here
+        for (Table t : tables.values())
+        {
+            if (t.file instanceof HeapFile)
+            {
+                try
+                {
+                    ((HeapFile) t.file).close();
+                }
+                catch (IOException e)
+                {
+                    // the table is dropped either way
+                }
+            }
+        }
 	tables.clear();
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as <code>name (field type, field type, ...)</code>,
+     * optionally followed by <code>mmap</code> to read the table through memory
+     * mappings of its file ({@link MappedHeapFile}) instead of read calls.
      *
      * @param catalogFile
      */
@@ -182,6 +200,11 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String backend = line.substring(line.indexOf(")") + 1).trim();
+                if (!backend.isEmpty() && !backend.equals("mmap")) {
+                    System.out.println("Unknown storage " + backend);
+                    System.exit(0);
+                }
                 String[] els = fields.split(",");
                 List<String> names = new ArrayList<>();
                 List<Type> types = new ArrayList<>();
@@ -209,7 +232,8 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File tableFile = new File(baseFolder + "/" + name + ".dat");
+                HeapFile tabHf = backend.equals("mmap") ? new MappedHeapFile(tableFile, t) : new HeapFile(tableFile, t);
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -66,11 +66,26 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- install the given buffer pool and return it
+     */
+    public static BufferPool resetBufferPool(BufferPool bufferPool) {
+        // committed pages still in the old pool, or waiting for its writer,
+        // must be on disk before the new pool reads them
+        try {
+            _instance.get()._bufferpool.flushAllPages();
+            _instance.get()._bufferpool.stopPageWriter();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         java.lang.reflect.Field bufferPoolF = null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -12,6 +12,8 @@ import simpledb.transaction.TransactionId;
 import simpledb.index.BTreeChecker;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -117,13 +119,7 @@ public class BTreeFile implements DbFile {
                             + BufferPool.getPageSize() + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-                if (id.pgcateg() == BTreePageId.INTERNAL) {
-                    return new BTreeInternalPage(id, pageBuf, keyField);
-                } else if (id.pgcateg() == BTreePageId.LEAF) {
-                    return new BTreeLeafPage(id, pageBuf, keyField);
-                } else { // id.pgcateg() == BTreePageId.HEADER
-                    return new BTreeHeaderPage(id, pageBuf);
-                }
+                return createPage(id, pageBuf);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -132,6 +128,60 @@ public class BTreeFile implements DbFile {
         // Ignore failures closing the file
     }
 
+    /**
+     * Read a batch of pages from the file on disk, with one positional read
+     * for each run of pages that are next to each other in the file. This
+     * should not be called directly but should be called from the BufferPool
+     *
+     * @param pids - the ids of the pages to read from disk
+     * @return the pages constructed from the contents on disk, in the order
+     * of pids
+     */
+    @Override
+    public List<Page> readPages(List<PageId> pids) {
+        long[] offsets = new long[pids.size()];
+        int[] lengths = new int[pids.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            BTreePageId id = (BTreePageId) pids.get(i);
+            if (id.pgcateg() == BTreePageId.ROOT_PTR) {
+                offsets[i] = 0;
+                lengths[i] = BTreeRootPtrPage.getPageSize();
+            } else {
+                offsets[i] = BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize();
+                lengths[i] = BufferPool.getPageSize();
+            }
+        }
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            byte[][] blocks = CoalescedRead.readBlocks(channel, offsets, lengths);
+            List<Page> pages = new ArrayList<>(pids.size());
+            for (int i = 0; i < blocks.length; i++) {
+                BTreePageId id = (BTreePageId) pids.get(i);
+                if (blocks[i] == null) {
+                    throw new IllegalArgumentException("Read past end of table");
+                }
+                Debug.log(1, "BTreeFile.readPages: read page %d", id.getPageNumber());
+                pages.add(id.pgcateg() == BTreePageId.ROOT_PTR ?
+                        new BTreeRootPtrPage(id, blocks[i]) : createPage(id, blocks[i]));
+            }
+            return pages;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Constructs an internal, leaf or header page from its contents on disk.
+     */
+    private Page createPage(BTreePageId id, byte[] data) throws IOException {
+        if (id.pgcateg() == BTreePageId.INTERNAL) {
+            return new BTreeInternalPage(id, data, keyField);
+        } else if (id.pgcateg() == BTreePageId.LEAF) {
+            return new BTreeLeafPage(id, data, keyField);
+        } else { // id.pgcateg() == BTreePageId.HEADER
+            return new BTreeHeaderPage(id, data);
+        }
+    }
+
     /**
      * Write a page to disk.  This should not be called directly but should
      * be called from the BufferPool when pages are flushed to disk
@@ -1305,10 +1355,25 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
                 tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, null);
+        curp = pin(f.findLeafPage(tid, root, null));
         it = curp.iterator();
     }
 
+    /**
+     * Pins the leaf the iterator moves to, after releasing the one it was on.
+     */
+    private BTreeLeafPage pin(BTreeLeafPage leaf) throws DbException, TransactionAbortedException {
+        unpin();
+        return (BTreeLeafPage) Database.getBufferPool().getPinnedPage(tid, leaf.getId(), Permissions.READ_ONLY);
+    }
+
+    private void unpin() {
+        if (curp != null) {
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+            curp = null;
+        }
+    }
+
     /**
      * Read the next tuple either from the current page if it has more tuples or
      * from the next page by following the right sibling pointer.
@@ -1323,9 +1388,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
             if (nextp == null) {
-                curp = null;
+                unpin();
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+                unpin();
+                curp = (BTreeLeafPage) Database.getBufferPool().getPinnedPage(tid,
                         nextp, Permissions.READ_ONLY);
                 it = curp.iterator();
                 if (!it.hasNext())
@@ -1351,8 +1417,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        unpin();
         it = null;
-        curp = null;
     }
 }
 
@@ -1390,15 +1456,28 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
                 tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
+        BTreeLeafPage leaf;
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, ipred.getField());
+            leaf = f.findLeafPage(tid, root, ipred.getField());
         } else {
-            curp = f.findLeafPage(tid, root, null);
+            leaf = f.findLeafPage(tid, root, null);
         }
+        unpin();
+        curp = (BTreeLeafPage) Database.getBufferPool().getPinnedPage(tid, leaf.getId(), Permissions.READ_ONLY);
         it = curp.iterator();
     }
 
+    /**
+     * Releases the pin on the leaf the iterator is on.
+     */
+    private void unpin() {
+        if (curp != null) {
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+            curp = null;
+        }
+    }
+
     /**
      * Read the next tuple either from the current page if it has more tuples matching
      * the predicate or from the next page by following the right sibling pointer.
@@ -1431,7 +1510,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             if (nextp == null) {
                 return null;
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+                unpin();
+                curp = (BTreeLeafPage) Database.getBufferPool().getPinnedPage(tid,
                         nextp, Permissions.READ_ONLY);
                 it = curp.iterator();
             }
@@ -1453,6 +1533,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        unpin();
         it = null;
     }
 }
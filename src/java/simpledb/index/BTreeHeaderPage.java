@@ -22,6 +22,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
     private volatile boolean dirty = false;
     private volatile TransactionId dirtier = null;
+    private volatile long lsn = 0;
 
     final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -33,7 +34,7 @@ public class BTreeHeaderPage implements Page {
     private int prevPage; // previous header page or 0
 
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -274,6 +275,14 @@ public class BTreeHeaderPage implements Page {
             return null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns true if the page of the BTreeFile associated with slot i is used
      */
@@ -19,6 +19,7 @@ public class BTreeRootPtrPage implements Page {
 
     private boolean dirty = false;
     private TransactionId dirtier = null;
+    private volatile long lsn = 0;
 
     private final BTreePageId pid;
 
@@ -141,6 +142,14 @@ public class BTreeRootPtrPage implements Page {
             return null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Return a view of this page before it was modified
      * -- used by recovery
@@ -0,0 +1,83 @@
+package simpledb.storage;
+
+/**
+ * A BufferAccessStrategy confines the pages a large sequential scan reads in
+ * to a small private ring of BufferPool frames. Once the ring is full, each
+ * page the scan misses on replaces the page the scan read in one lap ago
+ * (as long as that page is still resident and clean), so the scan never
+ * pushes more than a ring's worth of other queries' pages out of the pool.
+ * Pages that are already resident are used in place and not added to the
+ * ring.
+ * <p>
+ * A page can only be cached in the partition its id hashes to, so the ring
+ * is split into one smaller ring per partition, and a page the scan misses
+ * on replaces the page read into its own partition one lap ago.
+ *
+ * @see BufferPool#getBulkReadStrategy
+ */
+public class BufferAccessStrategy {
+
+    private final int ringSize;
+    /** Per partition, the frame each slot last loaded a page into, or -1. */
+    private final int[][] ringFrames;
+    private final PageId[][] ringPages;
+    private final int[] current;
+
+    /**
+     * @param ringSize the number of frames the scan may cycle through
+     */
+    public BufferAccessStrategy(int ringSize) {
+        this(ringSize, 1);
+    }
+
+    /**
+     * @param ringSize      the number of frames the scan may cycle through,
+     *                      over all partitions
+     * @param numPartitions the number of partitions of the pool
+     */
+    public BufferAccessStrategy(int ringSize, int numPartitions) {
+        this.ringSize = ringSize;
+        int slots = Math.max(1, (ringSize + numPartitions - 1) / numPartitions);
+        ringFrames = new int[numPartitions][slots];
+        ringPages = new PageId[numPartitions][slots];
+        current = new int[numPartitions];
+        for (int p = 0; p < numPartitions; ++p)
+        {
+            for (int i = 0; i < slots; ++i)
+                ringFrames[p][i] = -1;
+            current[p] = -1;
+        }
+    }
+
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    /**
+     * Moves to the next slot of a partition's ring and returns it.
+     */
+    int advance(int partition) {
+        current[partition] = (current[partition] + 1) % ringFrames[partition].length;
+        return current[partition];
+    }
+
+    /**
+     * @return the frame this slot last loaded a page into, or -1. Frames are
+     *         numbered within the partition.
+     */
+    int frameAt(int partition, int slot) {
+        return ringFrames[partition][slot];
+    }
+
+    /**
+     * @return the page this slot last loaded, or null
+     */
+    PageId pageAt(int partition, int slot) {
+        return ringPages[partition][slot];
+    }
+
+    void record(int partition, int slot, int frame, PageId pid) {
+        ringFrames[partition][slot] = frame;
+        ringPages[partition][slot] = pid;
+    }
+}
@@ -10,7 +10,8 @@ import simpledb.transaction.TransactionId;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -30,8 +31,6 @@ public class BufferPool {
     private static final int DEFAULT_PAGE_SIZE = 4096;
 
     private static int pageSize = DEFAULT_PAGE_SIZE;
-    public Page[] pages;
-    public boolean[] occupied;
 
     /**
      * Default number of pages passed to the constructor. This is used by
@@ -39,22 +38,152 @@ public class BufferPool {
      * constructor instead.
      */
     public static final int DEFAULT_PAGES = 50;
+    /** Upper bound on the ring size handed to bulk reads. */
+    public static final int BULK_READ_RING_PAGES = 32;
+    /**
+     * The default partition count gives every partition at least this many
+     * frames, so small pools keep a single partition and evict across all
+     * of their pages.
+     */
+    public static final int MIN_PARTITION_PAGES = 1024;
     public int maxpages;
     public LockManager lockManager;
+
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Where cached pages keep their contents.
+     */
+    public enum FrameMode {
+        /** Every page is an ordinary object on the Java heap. */
+        HEAP,
+        /**
+         * Heap file pages are views over frames of one direct-memory arena
+         * allocated up front; other pages stay on the heap.
+         */
+        OFF_HEAP
+    }
+
+    /** Pages are spread over the partitions by the hash of their PageId. */
+    private final BufferPoolPartition[] partitions;
+
+    /** The pins each transaction holds, by page; released when it completes. */
+    private final Map<TransactionId, Map<PageId, Integer>> pins = new ConcurrentHashMap<>();
+
+    /** See setRecordLocking. */
+    private volatile boolean recordLocking;
+
+    /**
+     * The heap pages each transaction changed only through logged tuple
+     * deltas, so that their page images need not be logged.
+     */
+    private final Map<TransactionId, Set<PageId>> deltaPages = new ConcurrentHashMap<>();
+
+    /** The background writer, or null if commits write their own pages. */
+    private volatile PageWriter pageWriter;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    /** Committed page versions for snapshot reads. */
+    private final VersionStore versions = new VersionStore();
+
+    /**
+     * The dirty page table: each page with changes that may not be on disk,
+     * and an LSN no later than the first log record of those changes (its
+     * recLSN). Checkpoints record it, and recovery redoes a page's changes
+     * from its recLSN on.
+     */
+    private final Map<PageId, Long> recLSNs = new ConcurrentHashMap<>();
+
+    /**
+     * Marks the pages changed by rollback and recovery, whose changes are
+     * in the log already.
+     */
+    private static final TransactionId RECOVERY = new TransactionId();
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, replacing pages
+     * with the CLOCK policy.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
-        // TODO: some code goes here
-        System.out.println("BufferPool constructor");
-        pages = new Page[numPages];
-        occupied = new boolean[numPages];
+        this(numPages, ClockEvictionPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, with one
+     * partition per MIN_PARTITION_PAGES pages up to one per processor.
+     *
+     * @param numPages       maximum number of pages in this buffer pool.
+     * @param evictionPolicy creates the eviction policy of a partition, given
+     *                       the number of frames in it
+     */
+    public BufferPool(int numPages, IntFunction<EvictionPolicy> evictionPolicy) {
+        this(numPages, defaultPartitions(numPages), evictionPolicy);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split into
+     * numPartitions partitions with their own latch, free list and eviction
+     * policy. A page is only ever cached in the partition its id hashes to,
+     * so a partition full of dirty pages cannot borrow frames from another.
+     *
+     * @param numPages       maximum number of pages in this buffer pool.
+     * @param numPartitions  number of partitions; at most numPages
+     * @param evictionPolicy creates the eviction policy of a partition, given
+     *                       the number of frames in it
+     */
+    public BufferPool(int numPages, int numPartitions, IntFunction<EvictionPolicy> evictionPolicy) {
+        this(numPages, numPartitions, evictionPolicy, FrameMode.HEAP);
+    }
+
+    /**
+     * Creates a partitioned BufferPool that caches up to numPages pages.
+     * In OFF_HEAP mode, numPages * getPageSize() bytes of direct memory are
+     * allocated for the frames when the pool is created.
+     *
+     * @param numPages       maximum number of pages in this buffer pool.
+     * @param numPartitions  number of partitions; at most numPages
+     * @param evictionPolicy creates the eviction policy of a partition, given
+     *                       the number of frames in it
+     * @param frameMode      where cached pages keep their contents
+     */
+    public BufferPool(int numPages, int numPartitions, IntFunction<EvictionPolicy> evictionPolicy,
+                      FrameMode frameMode) {
+        if (numPartitions < 1 || numPartitions > numPages)
+        {
+            throw new IllegalArgumentException("bad partition count " + numPartitions);
+        }
         maxpages = numPages;
+        PageArena arena = frameMode == FrameMode.OFF_HEAP ? new PageArena(numPages, pageSize) : null;
+        partitions = new BufferPoolPartition[numPartitions];
+        int arenaBase = 0;
+        for (int i = 0; i < numPartitions; ++i)
+        {
+            // spread the remainder over the first partitions
+            int frames = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            partitions[i] = new BufferPoolPartition(frames, evictionPolicy.apply(frames), arena, arenaBase);
+            arenaBase += frames;
+        }
         lockManager = new LockManager();
     }
 
+    private static int defaultPartitions(int numPages) {
+        int byCores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(byCores, numPages / MIN_PARTITION_PAGES));
+    }
+
+    private int partitionIndex(PageId pid) {
+        return (pid.hashCode() & 0x7fffffff) % partitions.length;
+    }
+
+    private BufferPoolPartition partitionFor(PageId pid) {
+        return partitions[partitionIndex(pid)];
+    }
+
+    public int getNumPartitions() {
+        return partitions.length;
+    }
+
     public static int getPageSize() {
         return pageSize;
     }
@@ -86,103 +215,540 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        boolean lock_granted = false;
-        while (!lock_granted)
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions)}, but if the
+     * page has to be read from disk it goes into the strategy's ring of
+     * frames rather than wherever the eviction policy makes room.
+     *
+     * @param strategy the access strategy of the calling scan, or null to
+     *                 use the whole pool
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm,
+                        BufferAccessStrategy strategy)
+            throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, strategy, null);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions, BufferAccessStrategy)},
+     * but a miss is served from the scan's read-ahead if it already has the
+     * page.
+     *
+     * @param readAhead the read-ahead of the calling scan, or null
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm,
+                        BufferAccessStrategy strategy, ReadAhead readAhead)
+            throws TransactionAbortedException, DbException {
+        return fetchPage(tid, pid, lockFor(perm), strategy, readAhead, false);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions)}, but also pins
+     * the page: it is not evicted until the transaction unpins it with
+     * {@link #unpinPage} or completes. Iterators pin the page they are on so
+     * the pool cannot drop it and read in a second copy while they use it.
+     * Pins nest; a page stays until every pin is released.
+     */
+    public Page getPinnedPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return getPinnedPage(tid, pid, perm, null, null);
+    }
+
+    /**
+     * Like {@link #getPage(TransactionId, PageId, Permissions, BufferAccessStrategy, ReadAhead)},
+     * but also pins the page; see {@link #getPinnedPage(TransactionId, PageId, Permissions)}.
+     */
+    public Page getPinnedPage(TransactionId tid, PageId pid, Permissions perm,
+                              BufferAccessStrategy strategy, ReadAhead readAhead)
+            throws TransactionAbortedException, DbException {
+        Page page = fetchPage(tid, pid, lockFor(perm), strategy, readAhead, true);
+        // a snapshot reads heap pages as private copies, which are not
+        // pinned; everything else fetchPage pinned
+        if (versions.snapshotOf(tid) == null || !(pid instanceof HeapPageId))
+        {
+            pins.computeIfAbsent(tid, t -> new ConcurrentHashMap<>()).merge(pid, 1, Integer::sum);
+        }
+        return page;
+    }
+
+    /**
+     * Fetches and pins a page whose records the transaction is about to
+     * change under record locking. The page is only locked
+     * INTENTION_EXCLUSIVE, so other transactions can change other records
+     * of it at the same time; the caller locks each record it changes and
+     * holds the page's monitor while it changes the page. The pin keeps
+     * the changes in the pool until the transaction completes.
+     *
+     * @see #setRecordLocking
+     */
+    public Page getPageForRecords(TransactionId tid, PageId pid)
+            throws TransactionAbortedException, DbException {
+        Page page = fetchPage(tid, pid, Lock.LockType.INTENTION_EXCLUSIVE, null, null, true);
+        pins.computeIfAbsent(tid, t -> new ConcurrentHashMap<>()).merge(pid, 1, Integer::sum);
+        return page;
+    }
+
+    /**
+     * Locks a record, blocking until the lock is granted.
+     */
+    public void lockRecord(TransactionId tid, RecordId rid, Permissions perm)
+            throws TransactionAbortedException {
+        try
+        {
+            lockManager.acquireRecordLock(tid, rid, lockFor(perm));
+        }
+        catch (TransactionAbortedException e)
+        {
+            transactionComplete(tid, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Locks a record exclusively if that is possible without waiting.
+     *
+     * @return whether the lock is held
+     */
+    public boolean tryLockRecord(TransactionId tid, RecordId rid) {
+        return lockManager.tryAcquireRecordLock(tid, rid);
+    }
+
+    /**
+     * Whether heap file inserts and deletes lock the records they change
+     * rather than their pages.
+     */
+    public boolean isRecordLocking() {
+        return recordLocking;
+    }
+
+    /**
+     * Switches heap file inserts and deletes between page and record
+     * locking. Under record locking a transaction that changes a record
+     * locks it exclusively and its page only INTENTION_EXCLUSIVE, so
+     * transactions changing different records of a page run concurrently.
+     * An abort then undoes the transaction's own record changes from the
+     * log instead of restoring the whole page. Only switch while no
+     * transaction is running.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    private static Lock.LockType lockFor(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? Lock.LockType.SHARED : Lock.LockType.EXCLUSIVE;
+    }
+
+    /**
+     * Releases one pin a transaction holds on a page.
+     */
+    public void unpinPage(TransactionId tid, PageId pid)
+    {
+        Map<PageId, Integer> held = pins.get(tid);
+        if (held == null || !held.containsKey(pid))
+        {
+            return;
+        }
+        held.computeIfPresent(pid, (p, n) -> n == 1 ? null : n - 1);
+        partitionFor(pid).unpin(pid);
+    }
+
+    /**
+     * Returns the number of pins on a resident page, or 0 if it is not
+     * resident.
+     */
+    public int getPinCount(PageId pid)
+    {
+        return partitionFor(pid).pinCount(pid);
+    }
+
+    /**
+     * Starts reading a snapshot for a read-only transaction: until it
+     * completes, it reads every heap page as of the last commit published
+     * now, without taking locks, so it never waits for writers nor they
+     * for it. B+ tree pages are still read under shared locks. The
+     * transaction may not change anything. Snapshots rely on page locking;
+     * pages changed under record locking are not versioned.
+     *
+     * @see VersionStore
+     */
+    public void beginSnapshot(TransactionId tid)
+    {
+        versions.beginSnapshot(tid);
+    }
+
+    public VersionStore getVersionStore()
+    {
+        return versions;
+    }
+
+    /**
+     * Returns a private copy of a heap page as a snapshot reads it.
+     */
+    private Page snapshotPage(TransactionId tid, PageId pid, long snapshot,
+                              BufferAccessStrategy strategy, ReadAhead readAhead)
+            throws TransactionAbortedException, DbException {
+        HeapPage current = (HeapPage) fetchPage(tid, pid, null, strategy, readAhead, false);
+        // take the image before looking for versions: a commit keeps the
+        // old image as a version before it changes the page
+        byte[] image = versions.read(pid, snapshot, current.committedImage());
+        try
         {
-            if(perm == Permissions.READ_ONLY)
+            return new HeapPage((HeapPageId) pid, image);
+        }
+        catch (IOException e)
+        {
+            throw new DbException("cannot copy page " + pid + ": " + e);
+        }
+    }
+
+    /**
+     * @param lock the lock to take on the page first, or null to take none
+     */
+    private Page fetchPage(TransactionId tid, PageId pid, Lock.LockType lock,
+                           BufferAccessStrategy strategy, ReadAhead readAhead, boolean pin)
+            throws TransactionAbortedException, DbException {
+        Long snapshot = lock == null ? null : versions.snapshotOf(tid);
+        if (snapshot != null && pid instanceof HeapPageId)
+        {
+            if (lock != Lock.LockType.SHARED)
             {
-                lock_granted = lockManager.grantSharedLock(tid, pid);
+                throw new DbException("transaction " + tid.getId() + " reads a snapshot and cannot write");
             }
-            else
+            return snapshotPage(tid, pid, snapshot, strategy, readAhead);
+        }
+        // blocks until the lock is granted
+        if (lock != null)
+        {
+            try
             {
-                lock_granted = lockManager.grantExclusiveLock(tid, pid);
+                lockManager.acquireLock(tid, pid, lock);
             }
-        }
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-            if (!occupied[i])
+            catch (TransactionAbortedException e)
             {
-                continue;
+                // abort on the thread that asked; this releases the
+                // transaction's locks
+                transactionComplete(tid, false);
+                throw e;
             }
-		   Page page = pages[i];
-           if (page == null)
-           {
-            System.out.println("page is null");
-            System.out.println(i);
-            System.out.println(occupied[i]);
-           }
-		   if (pid.equals(page.getId()))
-		   {
-
-			   return page;
-		   }
-
-	    }
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-            if (occupied[i])
+        }
+        BufferPoolPartition partition = partitionFor(pid);
+        Page page = partition.accessPage(pid);
+        // if the page is evicted before it is pinned, take the slow path
+        if (page != null && (!pin || partition.pin(pid, page)))
+        {
+            hits.increment();
+            return page;
+        }
+        if (readAhead != null)
+        {
+            readAhead.pageMissed();
+        }
+        int ring = partitionIndex(pid);
+        int slot = -1;
+        while (true)
+        {
+            PageId victim = null;
+            BufferPoolPartition.PageRead read;
+            boolean reading = false;
+            synchronized (partition)
             {
-                continue;
+                // somebody may have read the page in while we waited
+                page = partition.accessPage(pid);
+                if (page != null)
+                {
+                    if (pin)
+                    {
+                        partition.pin(pid, page);
+                    }
+                    hits.increment();
+                    return page;
+                }
+                // or may be reading it in now
+                read = partition.pendingRead(pid);
+                if (read == null)
+                {
+                    if (strategy != null && slot == -1)
+                    {
+                        // take back the frame the scan filled in this
+                        // partition one lap ago; under the latch, so the
+                        // read below gets it
+                        slot = strategy.advance(ring);
+                        PageId previous = strategy.pageAt(ring, slot);
+                        if (previous != null)
+                        {
+                            partition.discardIfClean(previous, strategy.frameAt(ring, slot));
+                        }
+                    }
+                    victim = partition.stealVictim();
+                    if (victim == null)
+                    {
+                        read = partition.busyRead();
+                        if (read == null)
+                        {
+                            read = partition.beginRead(pid);
+                            reading = true;
+                        }
+                    }
+                }
             }
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = file.readPage(pid);
-            if (page == null)
+            if (reading)
             {
-                System.out.println("ballsack");
+                // the frame is reserved, so the read runs without the latch
+                misses.increment();
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = partition.completeRead(read, file, pageWriter, readAhead, pin);
+                if (strategy != null)
+                {
+                    strategy.record(ring, slot, read.frame, pid);
+                }
+                return page;
             }
-            pages[i] = page;
-            occupied[i] =true;
-            // System.out.println("Returned a page here");
-            return page;
-
-	    }
-        evictPage(); 
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-            if (occupied[i])
+            if (victim != null)
             {
-                continue;
+                steal(victim);
             }
-            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = file.readPage(pid);
-            if (page == null)
+            else
             {
-                System.out.println("ballsack");
+                read.await();
             }
-            pages[i] = page;
-            occupied[i] =true;
-            return page;
+        }
+    }
+
+    /**
+     * Returns the number of getPage calls served from the pool.
+     */
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of getPage calls that had to read from disk.
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
 
-	    }
-        throw new TransactionAbortedException();
+    /**
+     * Returns the access strategy a sequential scan of scanPages pages should
+     * use, or null if the scan should go through the whole pool. Scans that
+     * fit in the pool are worth caching; bigger ones would only cycle the
+     * whole pool and still miss on every page the next time round.
+     */
+    public BufferAccessStrategy getBulkReadStrategy(int scanPages)
+    {
+        if (scanPages <= maxpages)
+        {
+            return null;
+        }
+        return new BufferAccessStrategy(Math.max(1, Math.min(BULK_READ_RING_PAGES, maxpages / 8)),
+                partitions.length);
+    }
+
+    /**
+     * Starts a background writer. From then on a committing transaction
+     * logs its dirty pages and hands them to the writer instead of writing
+     * them out before it returns; see {@link PageWriter}.
+     *
+     * @param intervalMillis time between two rounds of the writer
+     * @param pagesPerRound  at most this many pages are written per round
+     * @param highWaterMark  number of committed pages allowed to wait for the
+     *                       writer before commits write the excess themselves
+     */
+    public synchronized void startPageWriter(long intervalMillis, int pagesPerRound, int highWaterMark)
+            throws IOException
+    {
+        stopPageWriter();
+        PageWriter writer = new PageWriter(intervalMillis, pagesPerRound, highWaterMark);
+        writer.start();
+        pageWriter = writer;
+    }
+
+    /**
+     * Stops the background writer, if there is one, after writing out all
+     * the pages waiting for it. Commits write their own pages again.
+     */
+    public synchronized void stopPageWriter() throws IOException
+    {
+        PageWriter writer = pageWriter;
+        if (writer != null)
+        {
+            writer.stop();
+            pageWriter = null;
+        }
+    }
+
+    /**
+     * Returns the background writer, or null if it is not running.
+     */
+    public PageWriter getPageWriter()
+    {
+        return pageWriter;
     }
 
     private void cachePage(Page cachepage, PageId pid)
             throws TransactionAbortedException, DbException {
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-           if (!occupied[i])
-                {continue;}
-		   Page page = pages[i];
-		   if (page.getId().equals(pid))
-		   {
-                pages[i] = cachepage;
-                return ;
-		   }
-
-	    }
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-            if (occupied[i])
+        BufferPoolPartition partition = partitionFor(pid);
+        while (true)
+        {
+            PageId victim = null;
+            BufferPoolPartition.PageRead read;
+            synchronized (partition)
             {
-                continue;
+                // a read in progress would install the old copy over this one
+                read = partition.pendingRead(pid);
+                if (read == null && partition.lookupPage(pid) == null)
+                {
+                    victim = partition.stealVictim();
+                    read = victim == null ? partition.busyRead() : null;
+                }
+                if (read == null && victim == null)
+                {
+                    partition.cachePage(cachepage);
+                    return;
+                }
             }
-            pages[i] = cachepage;
-            occupied[i] =true;
+            if (victim != null)
+            {
+                steal(victim);
+            }
+            else
+            {
+                read.await();
+            }
+        }
+    }
+
+    /**
+     * Writes out a dirty page that stealVictim picked in a full partition
+     * (STEAL), after which the caller latches the partition and tries
+     * again. Each page is logged first if its changes are not in the log
+     * yet, so an abort or recovery can take them back. Called without the
+     * partition latch, since flushing may wait for the log, and recovery
+     * holds the log while it reads pages in.
+     */
+    private void steal(PageId victim) throws DbException
+    {
+        try
+        {
+            flushPage(victim);
+        }
+        catch (IOException e)
+        {
+            throw new DbException("cannot write out page " + victim + ": " + e);
+        }
+    }
+
+    /**
+     * Returns a page for recovery to redo or undo a change on, without
+     * locking it. A heap page read in gets the LSN saved with it on disk.
+     *
+     * @param pin whether to pin the page until {@link #unpinForRecovery}
+     */
+    Page getPageForRecovery(PageId pid, boolean pin) throws DbException
+    {
+        Page page;
+        try
+        {
+            page = fetchPage(null, pid, null, null, null, pin);
+        }
+        catch (TransactionAbortedException e)
+        {
+            throw new DbException("cannot read page " + pid + " for recovery: " + e);
+        }
+        savedLSN(page);
+        return page;
+    }
+
+    /**
+     * Releases the pin of a page getPageForRecovery pinned.
+     */
+    void unpinForRecovery(PageId pid)
+    {
+        partitionFor(pid).unpin(pid);
+    }
+
+    /**
+     * Gives a heap page that has no LSN, as read from disk, the LSN saved
+     * with it, if it still is as on disk.
+     */
+    private void savedLSN(Page page) throws DbException
+    {
+        if (page.getLSN() != 0 || !(page instanceof HeapPage))
+        {
             return;
-	    }
-		return ;
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        if (file instanceof HeapFile)
+        {
+            try
+            {
+                page.setLSN(((HeapFile) file).savedLSN((HeapPage) page));
+            }
+            catch (IOException e)
+            {
+                throw new DbException("cannot read the LSN of page " + page.getId() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * Records a page as dirty since no later than the next log record,
+     * before rollback logs a change to it, so that no checkpoint sees the
+     * record but not the dirty page.
+     */
+    void logging(PageId pid)
+    {
+        recLSNs.putIfAbsent(pid, Database.getLogFile().nextLSN());
+    }
+
+    /**
+     * Installs a page that rollback or recovery changed, or an image of it
+     * from the log, replacing the cached copy. It stays dirty until it is
+     * written out.
+     *
+     * @param recLSN the LSN of the log record of the change
+     */
+    void recovered(Page page, long recLSN) throws DbException
+    {
+        page.markDirty(true, RECOVERY);
+        recLSNs.putIfAbsent(page.getId(), recLSN);
+        if (page instanceof HeapPage)
+        {
+            DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+            if (file instanceof HeapFile)
+            {
+                ((HeapFile) file).tracked((HeapPage) page);
+            }
+        }
+        try
+        {
+            cachePage(page, page.getId());
+        }
+        catch (TransactionAbortedException e)
+        {
+            throw new DbException("cannot cache page " + page.getId() + ": " + e);
+        }
     }
+
+    /**
+     * Returns a snapshot of the pages resident when this is called. Each
+     * partition is latched in turn, not all at once.
+     */
+    private List<Page> residentPages()
+    {
+        List<Page> resident = new ArrayList<>();
+        for (BufferPoolPartition partition : partitions)
+        {
+            resident.addAll(partition.residentPages());
+        }
+        return resident;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -229,33 +795,143 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // TODO: some code goes here
         // not necessary for lab1|lab2
-        // Flush dirty pages
-        for (int i = 0; i < pages.length; ++i)
+        LogFile log = Database.getLogFile();
+        if (!commit)
         {
-            if (!occupied[i])
+            // takes back the logged changes, including those of pages
+            // written out before the abort
+            try
             {
-                continue;
+                if (log.isActive(tid))
+                {
+                    log.logAbort(tid);
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        versions.endSnapshot(tid);
+        List<Page> dirty = new ArrayList<>();
+        for (Page page : residentPages())
+        {
+            if (tid.equals(page.isDirty()))
+            {
+                dirty.add(page);
+            }
+        }
+        // keep the committed images for snapshots before the pages change
+        Map<PageId, byte[]> images = new HashMap<>();
+        for (Page page : dirty)
+        {
+            if (commit && page instanceof HeapPage)
+            {
+                images.put(page.getId(), ((HeapPage) page).committedImage());
             }
-            Page page = pages[i];
-            if (page.isDirty() == tid)
+        }
+        long commitNumber = images.isEmpty() ? 0 : versions.beginCommit(images);
+        Set<PageId> logged = deltaPages.remove(tid);
+        if (commit)
+        {
+            // NO-FORCE: the commit only forces the log, which must hold
+            // every change first
+            try
             {
-                try{
-                    if (commit)
+                for (Page page : dirty)
+                {
+                    if (logged == null || !logged.contains(page.getId()))
                     {
-                        flushPage(page.getId());
+                        recLSNs.putIfAbsent(page.getId(), log.nextLSN());
+                        page.setLSN(log.logWrite(tid, page.getBeforeImage(), page));
                     }
-                        
-                    else
-                        removePage(page.getId());
-                } catch (Exception e)
+                }
+                if (log.isActive(tid))
                 {
-                    e.printStackTrace();
+                    log.logCommit(tid);
                 }
             }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        PageWriter writer = pageWriter;
+        for (Page page : dirty)
+        {
+            try
+            {
+                if (commit && writer != null)
+                {
+                    commitToWriter(page, writer);
+                }
+                else if (commit)
+                {
+                    // written once it is evicted, flushed or checkpointed
+                    page.setBeforeImage();
+                }
+                else
+                {
+                    restoreBeforeImage(page);
+                }
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if (commitNumber != 0)
+        {
+            versions.endCommit(commitNumber, images.keySet());
+        }
+        // pins of iterators that were never closed
+        Map<PageId, Integer> held = pins.remove(tid);
+        if (held != null)
+        {
+            held.forEach((pid, n) -> {
+                for (int i = 0; i < n; ++i)
+                {
+                    partitionFor(pid).unpin(pid);
+                }
+            });
         }
         lockManager.releaseAllLocks(tid);
     }
 
+    /**
+     * Queues a snapshot of a committed page for the writer. The page is then
+     * clean: until the snapshot is written, reading the page again gets it
+     * from the writer.
+     */
+    private void commitToWriter(Page page, PageWriter writer) throws IOException
+    {
+        page.setBeforeImage();
+        Page snapshot = page.getBeforeImage();
+        snapshot.setLSN(page.getLSN());
+        // queue before marking clean, or the page could be evicted and read
+        // back from disk in between
+        writer.enqueue(snapshot);
+        page.markDirty(false, null);
+    }
+
+    /**
+     * Puts back the committed image of a page an aborting transaction
+     * changed without logging it. The image stays dirty: earlier commits
+     * may not have reached disk yet.
+     */
+    private void restoreBeforeImage(Page page) throws DbException
+    {
+        if (page instanceof HeapPage)
+        {
+            ((HeapPage) page).rolledBack();
+        }
+        Page before = page.getBeforeImage();
+        before.setLSN(page.getLSN());
+        // with no logged change since it was read, the image is as on disk
+        savedLSN(before);
+        recovered(before, Database.getLogFile().nextLSN());
+    }
+
     /**
      * Add a tuple to the specified table on behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to and any other
@@ -283,6 +959,10 @@ public class BufferPool {
             ((Page)p).markDirty(true, tid);
             cachePage(page, ((Page)p).getId());
         }
+        if (hf instanceof HeapFile)
+        {
+            recordChanged(tid, TupleDelta.insert(copyOf(t)));
+        }
     }
 
     /**
@@ -303,6 +983,7 @@ public class BufferPool {
         // TODO: some code goes here
         // not necessary for lab1
         DbFile hf = (DbFile) Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
+        Tuple deleted = copyOf(t);
         List<Page> q = hf.deleteTuple(tid, t);
         for (Page p : q)
         {
@@ -311,18 +992,88 @@ public class BufferPool {
 
             cachePage(page, ((Page)p).getId());
         }
-        System.out.println("passed delete");
+        if (hf instanceof HeapFile)
+        {
+            recordChanged(tid, TupleDelta.delete(deleted));
+        }
+    }
+
+    /**
+     * Sets one field of a heap file record on behalf of transaction tid,
+     * logging only the field's old and new values. Locks as deleteTuple
+     * does.
+     */
+    public void updateField(TransactionId tid, RecordId rid, int field, Field value)
+            throws DbException, IOException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(rid.getPageId().getTableId());
+        if (!(file instanceof HeapFile))
+        {
+            throw new DbException("table " + rid.getPageId().getTableId() + " is not a heap file");
+        }
+        Field old = ((HeapFile) file).updateField(tid, rid, field, value);
+        recordChanged(tid, TupleDelta.update(rid, field, old, value));
+    }
+
+    /**
+     * Logs a change to a heap file record, made to a page already marked
+     * dirty, and has the page wait for the log record before it is written.
+     * HeapFile pins the page before it changes it, so that the change is
+     * neither stolen nor checkpointed before it is logged. Under page
+     * locking that pin is released here, once the page's LSN is set; under
+     * record locking the page stays pinned until the transaction completes.
+     */
+    private void recordChanged(TransactionId tid, TupleDelta delta) throws IOException
+    {
+        PageId pid = delta.getRecordId().getPageId();
+        LogFile log = Database.getLogFile();
+        try
+        {
+            // in the table before the record is in the log, so that no
+            // checkpoint sees the record but not the dirty page
+            recLSNs.putIfAbsent(pid, log.nextLSN());
+            long lsn = log.logDelta(tid, delta);
+            deltaPages.computeIfAbsent(tid, x -> ConcurrentHashMap.newKeySet()).add(pid);
+            Page page = partitionFor(pid).lookupPage(pid);
+            if (page != null && page.getLSN() < lsn)
+            {
+                page.setLSN(lsn);
+            }
+        }
+        finally
+        {
+            if (!recordLocking)
+            {
+                unpinPage(tid, pid);
+            }
+        }
+    }
+
+    private static Tuple copyOf(Tuple t)
+    {
+        Tuple copy = new Tuple(t.getTupleDesc());
+        for (int i = 0; i < t.getTupleDesc().numFields(); ++i)
+        {
+            copy.setField(i, t.getField(i));
+        }
+        copy.setRecordId(t.getRecordId());
+        return copy;
     }
 
     /**
      * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     * break simpledb if running in NO STEAL mode.
+     * Pages with uncommitted changes are logged first, as when they are
+     * stolen, so that abort and recovery can take the changes back.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // TODO: some code goes here
         // not necessary for lab1
-
+        for (Page page : residentPages())
+        {
+            if (page.isDirty() != null)
+            {
+                flushPage(page.getId());
+            }
+        }
     }
 
     /**
@@ -334,94 +1085,130 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void removePage(PageId pid) {
+    public void removePage(PageId pid) {
         // TODO: some code goes here
         // not necessary for lab1
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-            if (!occupied[i])
-            {
-                continue;
-            }
-		   Page page = pages[i];
-		   if (pid.equals(page.getId()))
-		   {
-                occupied[i] =false;
-		   }
-
-	    }
+        partitionFor(pid).removePage(pid);
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk, once the log is durable up to the
+     * page's LSN (write-ahead logging). A page whose changes by a running
+     * transaction are not logged yet is logged first.
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    void flushPage(PageId pid) throws IOException {
         // TODO: some code goes here
         // not necessary for lab1
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-            if (!occupied[i])
+        BufferPoolPartition partition = partitionFor(pid);
+        Page page = partition.lookupPage(pid);
+        if (page == null)
+        {
+            return;
+        }
+        LogFile log = Database.getLogFile();
+        // the write takes in every change logged before this
+        long written = log.nextLSN();
+        TransactionId dirtier = page.isDirty();
+        if (dirtier != null && dirtier != RECOVERY && lockManager.holdsLock(dirtier, pid)
+                && !deltaPages.getOrDefault(dirtier, Collections.emptySet()).contains(pid))
+        {
+            page.setLSN(log.logWrite(dirtier, page.getBeforeImage(), page));
+        }
+        log.forceTo(page.getLSN());
+        partition.flushPage(pid, pageWriter);
+        // a page dirtied again meanwhile has changes to redo from no
+        // earlier than the write
+        recLSNs.computeIfPresent(pid, (p, recLSN) -> {
+            Page now = partition.lookupPage(p);
+            return now == null || now.isDirty() == null ? null : Math.max(recLSN, written);
+        });
+    }
+
+    /**
+     * Returns a copy of the dirty page table: the pages that may have
+     * changes not on disk, each with an LSN no later than the first log
+     * record of those changes.
+     */
+    public Map<PageId, Long> getDirtyPageTable()
+    {
+        return new HashMap<>(recLSNs);
+    }
+
+    /**
+     * Has the pages whose changes may go back before the given LSN written
+     * out, so that redo no longer needs the log before it. They are handed
+     * to the background writer if it is running, and otherwise written
+     * here, one at a time, while transactions go on.
+     */
+    public void flushOldPages(long lsn) throws IOException
+    {
+        PageWriter writer = pageWriter;
+        for (Map.Entry<PageId, Long> entry : recLSNs.entrySet())
+        {
+            if (entry.getValue() >= lsn)
             {
                 continue;
             }
-		   Page page = pages[i];
-		   if (pid.equals(page.getId()))
-		   {
-                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                file.writePage(page);
-		   }
-	    }
+            if (writer != null)
+            {
+                writer.handOver(entry.getKey());
+            }
+            else
+            {
+                writeOldPage(entry.getKey());
+            }
+        }
     }
 
     /**
-     * Write all pages of the specified transaction to disk.
+     * Writes out a page a checkpoint wants on disk and drops it from the
+     * dirty page table, once it is on disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-        // TODO: some code goes here
-        // not necessary for lab1|lab2
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-		   Page page = pages[i];
-		   if (tid.equals(page.isDirty()))
-		   {
-                PageId pid = page.getId();
-                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
-                file.writePage(page);
-		   }
-	    }
+    void writeOldPage(PageId pid) throws IOException
+    {
+        Long recLSN = recLSNs.get(pid);
+        if (recLSN == null)
+        {
+            return;
+        }
+        BufferPoolPartition partition = partitionFor(pid);
+        if (partition.lookupPage(pid) != null)
+        {
+            // a pinned page may have a change that is not logged yet;
+            // the next checkpoint tries again
+            if (partition.pinCount(pid) == 0)
+            {
+                flushPage(pid);
+            }
+            return;
+        }
+        // an evicted page was written out, unless its commit is still
+        // waiting for the writer; latched so no read installs it meanwhile
+        PageWriter writer = pageWriter;
+        synchronized (partition)
+        {
+            if (partition.lookupPage(pid) == null && (writer == null || !writer.isPending(pid)))
+            {
+                recLSNs.remove(pid, recLSN);
+            }
+        }
     }
 
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Write all pages of the specified transaction to disk.
      */
-    private synchronized void evictPage() throws DbException {
+    public void flushPages(TransactionId tid) throws IOException {
         // TODO: some code goes here
-        // not necessary for lab1
-
-	    for (int i = 0; i < pages.length; ++i)
-	    {
-            if (!occupied[i])
-                continue;
-            Page page = pages[i];
-            if (page.isDirty() != null)
+        // not necessary for lab1|lab2
+        for (Page page : residentPages())
+        {
+            if (tid.equals(page.isDirty()))
             {
-                continue;
-            }
-            try{
                 flushPage(page.getId());
-                removePage(page.getId());
-                return;
-            }
-            catch (Exception e)
-            {
-                System.out.println(e);
-                
             }
-	    }
-        throw new DbException("no page to evict");
+        }
     }
 
 }
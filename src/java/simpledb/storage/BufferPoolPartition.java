@@ -0,0 +1,453 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One partition of the BufferPool. Every page id hashes to exactly one
+ * partition, which owns the frames that page can be cached in, its own free
+ * list and its own eviction policy. The partition object is the latch for
+ * all of that state: methods that change it are synchronized, while
+ * lookups read the page table without the latch.
+ * <p>
+ * Disk reads happen without the latch. A miss reserves a frame under the
+ * latch and publishes a PageRead for the page, reads the page with the
+ * latch released, and then takes the latch again to install it. Other
+ * threads asking for the same page find the PageRead and wait for it
+ * instead of reading the page a second time.
+ * <p>
+ * A thread holds at most one partition latch at a time, so partition latches
+ * cannot deadlock with each other.
+ *
+ * @see BufferPool
+ */
+class BufferPoolPartition {
+
+    /**
+     * A page being read into a reserved frame. The frame holds no page
+     * until the read is installed, so it is neither free nor evictable.
+     */
+    static final class PageRead {
+        final PageId pid;
+        final int frame;
+        private boolean done;
+
+        PageRead(PageId pid, int frame) {
+            this.pid = pid;
+            this.frame = frame;
+        }
+
+        /**
+         * Waits until the page is installed or the read has failed.
+         */
+        synchronized void await() {
+            boolean interrupted = false;
+            while (!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void finish() {
+            done = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The frames holding resident pages. A frame is either free (null, and
+     * its index is on the free list) or holds the page that pageTable maps
+     * to it.
+     */
+    private final Page[] frames;
+    /** Maps every resident page to the index of the frame holding it. */
+    private final ConcurrentMap<PageId, Integer> pageTable;
+    /** Stack of free frame indexes; the top is freeFrames[numFree - 1]. */
+    private final int[] freeFrames;
+    private int numFree;
+    private final EvictionPolicy evictionPolicy;
+
+    /** Off-heap frame storage, or null if pages live on the Java heap. */
+    private final PageArena arena;
+    /** Arena slot of this partition's frame 0. */
+    private final int arenaBase;
+    /** Whether the page in a frame is a view over the frame's arena slot. */
+    private final boolean[] inArena;
+    /** How many times the page in each frame is pinned; pinned pages stay. */
+    private final int[] pinCounts;
+    /** The reads in progress, by page. */
+    private final Map<PageId, PageRead> reads = new HashMap<>();
+
+    BufferPoolPartition(int numFrames, EvictionPolicy evictionPolicy) {
+        this(numFrames, evictionPolicy, null, 0);
+    }
+
+    /**
+     * @param arena     arena to read heap file pages into, or null
+     * @param arenaBase arena slot backing frame 0 of this partition; frame i
+     *                  uses slot arenaBase + i
+     */
+    BufferPoolPartition(int numFrames, EvictionPolicy evictionPolicy, PageArena arena, int arenaBase) {
+        frames = new Page[numFrames];
+        pageTable = new ConcurrentHashMap<>(numFrames);
+        freeFrames = new int[numFrames];
+        // hand out low frames first
+        for (int i = 0; i < numFrames; ++i)
+        {
+            freeFrames[i] = numFrames - 1 - i;
+        }
+        numFree = numFrames;
+        this.evictionPolicy = evictionPolicy;
+        this.arena = arena;
+        this.arenaBase = arenaBase;
+        inArena = new boolean[numFrames];
+        pinCounts = new int[numFrames];
+    }
+
+    int capacity() {
+        return frames.length;
+    }
+
+    /**
+     * Returns the frame holding the page, or -1 if it is not cached. The
+     * frame is re-checked after the table lookup because it may have been
+     * recycled for another page in between.
+     */
+    int lookupFrame(PageId pid) {
+        Integer frame = pageTable.get(pid);
+        if (frame == null)
+        {
+            return -1;
+        }
+        Page page = frames[frame];
+        if (page == null || !pid.equals(page.getId()))
+        {
+            return -1;
+        }
+        return frame;
+    }
+
+    Page lookupPage(PageId pid) {
+        int frame = lookupFrame(pid);
+        return frame == -1 ? null : frames[frame];
+    }
+
+    /**
+     * Like lookupPage, but reports the lookup to the eviction policy as a
+     * hit.
+     */
+    Page accessPage(PageId pid) {
+        int frame = lookupFrame(pid);
+        if (frame == -1)
+        {
+            return null;
+        }
+        Page page = frames[frame];
+        evictionPolicy.frameAccessed(frame);
+        return page;
+    }
+
+    /**
+     * Returns the read in progress of a page, or null if nobody is reading
+     * it in.
+     */
+    synchronized PageRead pendingRead(PageId pid) {
+        return reads.get(pid);
+    }
+
+    /**
+     * Returns a read in progress to wait for before trying again, if no
+     * frame is free and no page can be evicted while reads are in
+     * progress; null otherwise. Called after stealVictim found nothing to
+     * write out.
+     */
+    synchronized PageRead busyRead() {
+        return numFree > 0 || reads.isEmpty() ? null : reads.values().iterator().next();
+    }
+
+    /**
+     * Starts reading a page that is neither resident nor being read:
+     * reserves a free frame for it, evicting a clean page first if the
+     * partition is full, and publishes the read. The caller must finish it
+     * with completeRead.
+     */
+    synchronized PageRead beginRead(PageId pid) throws DbException {
+        PageRead read = new PageRead(pid, reserveFrame());
+        reads.put(pid, read);
+        return read;
+    }
+
+    /**
+     * Reads the page of a read begun with beginRead into its frame, then
+     * installs it and wakes the threads waiting for it. The read itself
+     * runs without the latch. Heap file pages are read straight into the
+     * frame's arena slot when there is an arena, unless the file has its
+     * own page memory (see HeapFile#readsIntoFrames). A committed version
+     * still waiting in the page writer is newer than the one on disk, so it
+     * is used instead. Otherwise a page the read-ahead already has saves
+     * the read.
+     *
+     * @param writer    the pool's page writer, or null if it is not running
+     * @param readAhead the read-ahead of the calling scan, or null
+     * @param pin       whether to pin the page as it is installed
+     * @return the page
+     */
+    Page completeRead(PageRead read, DbFile file, PageWriter writer, ReadAhead readAhead, boolean pin)
+            throws DbException {
+        PageId pid = read.pid;
+        Page page = null;
+        boolean viewOfArena = false;
+        try
+        {
+            page = writer == null ? null : writer.pendingPage(pid);
+            if (page == null && readAhead != null)
+            {
+                page = readAhead.take(pid);
+            }
+            if (page == null)
+            {
+                // the reserved frame's arena slot is ours until the read ends
+                viewOfArena = arena != null && file instanceof HeapFile && ((HeapFile) file).readsIntoFrames();
+                if (viewOfArena)
+                {
+                    page = ((HeapFile) file).readPage(pid, arena.frame(arenaBase + read.frame));
+                }
+                else
+                {
+                    page = file.readPage(pid);
+                }
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                reads.remove(pid);
+                if (page == null)
+                {
+                    freeFrames[numFree++] = read.frame;
+                }
+                else
+                {
+                    install(read.frame, page, viewOfArena);
+                    if (pin)
+                    {
+                        ++pinCounts[read.frame];
+                    }
+                }
+            }
+            read.finish();
+        }
+        if (page == null)
+        {
+            throw new DbException("could not read page " + pid.getPageNumber());
+        }
+        return page;
+    }
+
+    /**
+     * Pins a page, provided it is still the one cached for its id.
+     *
+     * @return false if the page is no longer resident
+     */
+    synchronized boolean pin(PageId pid, Page page) {
+        int frame = lookupFrame(pid);
+        if (frame == -1 || frames[frame] != page)
+        {
+            return false;
+        }
+        ++pinCounts[frame];
+        return true;
+    }
+
+    synchronized void unpin(PageId pid) {
+        int frame = lookupFrame(pid);
+        if (frame != -1 && pinCounts[frame] > 0)
+        {
+            --pinCounts[frame];
+        }
+    }
+
+    synchronized int pinCount(PageId pid) {
+        int frame = lookupFrame(pid);
+        return frame == -1 ? 0 : pinCounts[frame];
+    }
+
+    /**
+     * Puts a page that is not yet resident into a free frame, evicting a
+     * page first if the partition is full.
+     *
+     * @return the frame the page was put in
+     */
+    synchronized int installPage(Page page) throws DbException {
+        int frame = reserveFrame();
+        install(frame, page, false);
+        return frame;
+    }
+
+    private int reserveFrame() throws DbException {
+        if (numFree == 0)
+        {
+            evictPage();
+        }
+        return freeFrames[--numFree];
+    }
+
+    private void install(int frame, Page page, boolean viewOfArena) {
+        frames[frame] = page;
+        inArena[frame] = viewOfArena;
+        pageTable.put(page.getId(), frame);
+        evictionPolicy.frameLoaded(frame, page.getId());
+    }
+
+    /**
+     * Detaches the page in a frame from its arena slot, if it is a view of
+     * it, before the slot is reused for another page.
+     */
+    private void releaseArenaSlot(int frame) {
+        if (inArena[frame])
+        {
+            ((HeapPage) frames[frame]).detach();
+            inArena[frame] = false;
+        }
+    }
+
+    /**
+     * Replaces the resident copy of a page, or installs it if the page is
+     * not resident.
+     */
+    synchronized void cachePage(Page page) throws DbException {
+        Integer frame = pageTable.get(page.getId());
+        if (frame != null)
+        {
+            if (frames[frame] != page)
+            {
+                releaseArenaSlot(frame);
+            }
+            frames[frame] = page;
+            return;
+        }
+        installPage(page);
+    }
+
+    /**
+     * Drops a page if it is still the clean, unpinned page in the given
+     * frame. Used by access strategies to take back the frames they filled.
+     */
+    synchronized void discardIfClean(PageId pid, int frame) {
+        if (frame != -1 && lookupFrame(pid) == frame && frames[frame].isDirty() == null
+                && pinCounts[frame] == 0)
+        {
+            removePage(pid);
+        }
+    }
+
+    synchronized void removePage(PageId pid) {
+        Integer frame = pageTable.remove(pid);
+        if (frame == null)
+        {
+            return;
+        }
+        releaseArenaSlot(frame);
+        frames[frame] = null;
+        // a page is removed on purpose even if pinned, e.g. on abort
+        pinCounts[frame] = 0;
+        freeFrames[numFree++] = frame;
+        evictionPolicy.frameRemoved(frame);
+    }
+
+    /**
+     * Writes a resident page to disk and marks it clean.
+     *
+     * @param writer the pool's page writer, which serializes the write with
+     *               its own, or null if it is not running
+     */
+    synchronized void flushPage(PageId pid, PageWriter writer) throws IOException {
+        Page page = lookupPage(pid);
+        if (page == null)
+        {
+            return;
+        }
+        if (writer != null)
+        {
+            writer.writeThrough(page);
+        }
+        else
+        {
+            DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            file.writePage(page);
+        }
+        page.markDirty(false, null);
+    }
+
+    /**
+     * Returns a snapshot of the pages resident when this is called.
+     */
+    synchronized List<Page> residentPages() {
+        List<Page> resident = new ArrayList<>(pageTable.size());
+        for (int frame : pageTable.values())
+        {
+            resident.add(frames[frame]);
+        }
+        return resident;
+    }
+
+    /**
+     * Makes sure a page can be read into this partition without writing
+     * one out: returns null if a frame is free or a clean, unpinned page
+     * could be evicted to free one, and otherwise the dirty, unpinned page
+     * the eviction policy picks, which the caller writes out and retries.
+     * Also returns null if every page is pinned or being read into;
+     * reading a page in then waits for a read (see busyRead) or fails.
+     */
+    synchronized PageId stealVictim() {
+        if (numFree > 0)
+        {
+            return null;
+        }
+        int victim = evictionPolicy.chooseVictim(
+                frame -> frames[frame] != null && frames[frame].isDirty() == null && pinCounts[frame] == 0);
+        if (victim != -1)
+        {
+            removePage(frames[victim].getId());
+            return null;
+        }
+        victim = evictionPolicy.chooseVictim(frame -> frames[frame] != null && pinCounts[frame] == 0);
+        return victim == -1 ? null : frames[victim].getId();
+    }
+
+    /**
+     * Discards a clean, unpinned page chosen by the eviction policy.
+     */
+    private synchronized void evictPage() throws DbException {
+        // clean pages match what is on disk, so they can just be dropped;
+        // pinned ones are still in use
+        int victim = evictionPolicy.chooseVictim(
+                frame -> frames[frame] != null && frames[frame].isDirty() == null && pinCounts[frame] == 0);
+        if (victim != -1)
+        {
+            removePage(frames[victim].getId());
+            return;
+        }
+        throw new DbException("no page to evict");
+    }
+}
@@ -0,0 +1,59 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK (second chance) replacement. Every frame has a reference bit that is
+ * set when the page is loaded or hit. The clock hand sweeps the frames,
+ * clearing set bits and evicting the first evictable frame whose bit is
+ * already clear, so pages hit since the last sweep survive one more round.
+ */
+public class ClockEvictionPolicy implements EvictionPolicy {
+
+    private final boolean[] resident;
+    private final boolean[] referenced;
+    private int hand;
+
+    public ClockEvictionPolicy(int numFrames) {
+        resident = new boolean[numFrames];
+        referenced = new boolean[numFrames];
+        hand = 0;
+    }
+
+    public synchronized void frameLoaded(int frame, PageId pid) {
+        resident[frame] = true;
+        referenced[frame] = true;
+    }
+
+    public void frameAccessed(int frame) {
+        // a lost update here only costs the page its second chance
+        referenced[frame] = true;
+    }
+
+    public synchronized void frameRemoved(int frame) {
+        resident[frame] = false;
+        referenced[frame] = false;
+    }
+
+    public synchronized int chooseVictim(IntPredicate evictable) {
+        // the first revolution may only clear bits; the second must find a
+        // victim if any frame is evictable at all, so the sweep is bounded
+        // without ever evicting a page that was hit since the hand passed
+        for (int i = 0; i < 2 * resident.length; ++i)
+        {
+            int frame = hand;
+            hand = (hand + 1) % resident.length;
+            if (!resident[frame] || !evictable.test(frame))
+            {
+                continue;
+            }
+            if (referenced[frame])
+            {
+                referenced[frame] = false;
+                continue;
+            }
+            return frame;
+        }
+        return -1;
+    }
+}
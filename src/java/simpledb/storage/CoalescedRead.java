@@ -0,0 +1,77 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Reads a batch of blocks of a file, such as the pages of a readPages call.
+ * The blocks are sorted by offset and blocks that are adjacent (or overlap)
+ * are read together, so a run of consecutive pages costs one positional
+ * read. Positional reads leave the channel's position alone, so several
+ * threads can read through the same channel at once.
+ *
+ * @see DbFile#readPages
+ */
+public final class CoalescedRead {
+
+    /** A single read never covers more than this many bytes. */
+    public static final int MAX_READ_BYTES = 1 << 20;
+
+    private CoalescedRead() {
+    }
+
+    /**
+     * Reads the blocks [offsets[i], offsets[i] + lengths[i]).
+     *
+     * @return the contents of each block, in the order the blocks were given;
+     *         null for a block that does not lie wholly inside the file
+     */
+    public static byte[][] readBlocks(FileChannel channel, long[] offsets, int[] lengths) throws IOException {
+        Integer[] order = new Integer[offsets.length];
+        for (int i = 0; i < order.length; ++i)
+        {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> offsets[i]));
+
+        byte[][] blocks = new byte[offsets.length][];
+        int first = 0;
+        while (first < order.length)
+        {
+            // grow the run while the next block starts inside or right after it
+            long start = offsets[order[first]];
+            long end = start + lengths[order[first]];
+            int last = first + 1;
+            while (last < order.length && offsets[order[last]] <= end
+                    && offsets[order[last]] + lengths[order[last]] - start <= MAX_READ_BYTES)
+            {
+                end = Math.max(end, offsets[order[last]] + lengths[order[last]]);
+                ++last;
+            }
+
+            ByteBuffer run = ByteBuffer.allocate((int) (end - start));
+            while (run.hasRemaining())
+            {
+                if (channel.read(run, start + run.position()) < 0)
+                {
+                    break;
+                }
+            }
+            long readEnd = start + run.position();
+            for (int k = first; k < last; ++k)
+            {
+                int i = order[k];
+                if (offsets[i] + lengths[i] <= readEnd)
+                {
+                    blocks[i] = Arrays.copyOfRange(run.array(), (int) (offsets[i] - start),
+                            (int) (offsets[i] - start) + lengths[i]);
+                }
+            }
+            first = last;
+        }
+        return blocks;
+    }
+}
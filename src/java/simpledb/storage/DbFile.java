@@ -6,6 +6,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -23,6 +24,23 @@ public interface DbFile {
      */
     Page readPage(PageId id);
 
+    /**
+     * Read a batch of pages from disk. Files that can should read runs of
+     * consecutive pages with one read each; by default the pages are read
+     * one by one.
+     *
+     * @param ids the pages to read, in any order
+     * @return the pages, in the order of ids
+     * @throws IllegalArgumentException if a page does not exist in this file.
+     */
+    default List<Page> readPages(List<PageId> ids) {
+        List<Page> pages = new ArrayList<>(ids.size());
+        for (PageId id : ids) {
+            pages.add(readPage(id));
+        }
+        return pages;
+    }
+
     /**
      * Push the specified page to disk.
      *
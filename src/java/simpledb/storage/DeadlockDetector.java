@@ -0,0 +1,103 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * The LockManager's background deadlock detector. Every INTERVAL_MILLIS it
+ * takes a snapshot of the waits-for graph, and while the snapshot has a
+ * cycle, it picks the youngest transaction on the cycle (the one with the
+ * highest id, which has done the least work) as the victim, removes it from
+ * the snapshot and has the LockManager abort it.
+ * <p>
+ * The thread only runs while some request is waiting; the LockManager
+ * starts it when a request has to wait and it stops once none is.
+ *
+ * @see LockManager
+ */
+public class DeadlockDetector implements Runnable {
+
+    /** Time between two searches of the waits-for graph. */
+    public static final long INTERVAL_MILLIS = 10;
+
+    private final LockManager lockManager;
+
+    DeadlockDetector(LockManager lockManager) {
+        this.lockManager = lockManager;
+    }
+
+    public void run() {
+        do
+        {
+            try
+            {
+                Thread.sleep(INTERVAL_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                // nothing else knows this thread, so nothing interrupts it
+            }
+            detect();
+        } while (lockManager.keepDetecting());
+    }
+
+    /**
+     * Breaks every cycle of the current waits-for graph.
+     */
+    void detect() {
+        Map<TransactionId, Set<TransactionId>> graph = lockManager.waitsForGraph();
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null)
+        {
+            TransactionId victim = Collections.max(cycle, Comparator.comparingLong(TransactionId::getId));
+            graph.remove(victim);
+            for (Set<TransactionId> edges : graph.values())
+            {
+                edges.remove(victim);
+            }
+            lockManager.chooseVictim(victim);
+        }
+    }
+
+    /**
+     * Returns the transactions on some cycle of the graph, or null if it has
+     * none.
+     */
+    static List<TransactionId> findCycle(Map<TransactionId, Set<TransactionId>> graph) {
+        Set<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet())
+        {
+            if (done.contains(start))
+            {
+                continue;
+            }
+            // iterative depth-first search; path holds the grey nodes
+            List<TransactionId> path = new ArrayList<>();
+            Deque<Iterator<TransactionId>> edges = new ArrayDeque<>();
+            path.add(start);
+            edges.push(graph.getOrDefault(start, Collections.emptySet()).iterator());
+            while (!edges.isEmpty())
+            {
+                if (!edges.peek().hasNext())
+                {
+                    edges.pop();
+                    done.add(path.remove(path.size() - 1));
+                    continue;
+                }
+                TransactionId next = edges.peek().next();
+                int onPath = path.indexOf(next);
+                if (onPath >= 0)
+                {
+                    return new ArrayList<>(path.subList(onPath, path.size()));
+                }
+                if (!done.contains(next))
+                {
+                    path.add(next);
+                    edges.push(graph.getOrDefault(next, Collections.emptySet()).iterator());
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,46 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * EvictionPolicy decides which BufferPool frame to give up when the pool is
+ * full. Frames are numbered 0..numPages-1, and the BufferPool reports every
+ * page that is loaded into, hit in, or removed from a frame.
+ * <p>
+ * Each BufferPoolPartition has its own policy, numbered over the frames of
+ * that partition, and calls frameLoaded, frameRemoved and chooseVictim
+ * with its latch held. frameAccessed is called on the getPage fast path
+ * without the latch, so it may run concurrently with the other methods.
+ *
+ * @see BufferPool#BufferPool(int, java.util.function.IntFunction)
+ */
+public interface EvictionPolicy {
+
+    /**
+     * A page was read (or cached) into a free frame.
+     *
+     * @param frame the frame now holding the page
+     * @param pid   the id of the page in the frame
+     */
+    void frameLoaded(int frame, PageId pid);
+
+    /**
+     * The page in a frame was returned by getPage without going to disk.
+     */
+    void frameAccessed(int frame);
+
+    /**
+     * The page in a frame was evicted or discarded; the frame is free.
+     */
+    void frameRemoved(int frame);
+
+    /**
+     * Pick the frame to evict. The policy does not remove the frame itself;
+     * the BufferPool reports that through frameRemoved.
+     *
+     * @param evictable tells whether a frame may be evicted right now (e.g.
+     *                  its page is not dirty)
+     * @return the victim frame, or -1 if no resident frame is evictable
+     */
+    int chooseVictim(IntPredicate evictable);
+}
@@ -0,0 +1,129 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.BitSet;
+
+/**
+ * The free-space map of a HeapFile: one bit per page, set if the page may
+ * have a free slot, so an insert goes straight to such a page instead of
+ * locking and reading every page before it.
+ * <p>
+ * The bits are hints. A set bit may be stale, e.g. after a delete was
+ * rolled back; an insert that finds the page full clears it and moves on.
+ * A clear bit is only ever taken from a page that was full, and a page
+ * regains its bit when a delete frees a slot, when a change that filled it
+ * is rolled back, or when it is read or written with a free slot.
+ * <p>
+ * The map is kept in a file next to the heap file, named after it with
+ * SUFFIX appended. The file starts with the number of pages the heap file
+ * had when the map was last written, followed by the bits of the pages as
+ * they were last written to the heap file. Pages past the end of the map
+ * file, and all pages if that page count does not match the heap file, are
+ * assumed to have room until shown otherwise.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    /** Appended to the heap file's name to name the map file. */
+    public static final String SUFFIX = ".fsm";
+    /** Bytes before the bits: the heap file's page count. */
+    private static final int HEADER_BYTES = 4;
+
+    private final File file;
+    /** The bits as the pages in the BufferPool have them. */
+    private final BitSet free = new BitSet();
+    /** The bits as the pages on disk have them; what the map file holds. */
+    private final BitSet onDisk = new BitSet();
+    /** The number of pages of the heap file, as the map file records it. */
+    private int numPages;
+    private RandomAccessFile out;
+
+    /**
+     * Loads the map of a heap file of numPages pages.
+     */
+    FreeSpaceMap(File heapFile, int numPages) {
+        this.file = new File(heapFile.getPath() + SUFFIX);
+        this.numPages = numPages;
+        byte[] bits = new byte[0];
+        if (file.exists())
+        {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+            {
+                // a map written for another length of the file is stale
+                if (in.readInt() == numPages)
+                {
+                    bits = in.readAllBytes();
+                }
+            }
+            catch (IOException e)
+            {
+                // assume room everywhere
+            }
+        }
+        onDisk.or(BitSet.valueOf(bits));
+        onDisk.set(Math.min(bits.length * 8, numPages), numPages);
+        onDisk.clear(numPages, Math.max(numPages, onDisk.length()));
+        free.or(onDisk);
+    }
+
+    /**
+     * Returns the first page from the given one on that may have a free
+     * slot, or -1 if there is none.
+     */
+    public synchronized int nextFree(int fromPage) {
+        return free.nextSetBit(fromPage);
+    }
+
+    /**
+     * Records whether a page in the BufferPool has a free slot.
+     */
+    public synchronized void setFree(int pageNo, boolean hasFreeSlot) {
+        free.set(pageNo, hasFreeSlot);
+    }
+
+    /**
+     * Records whether a page just written to the heap file has a free slot,
+     * and saves the page's bit in the map file. As for a page read in, a
+     * free slot also sets the page's bit in the BufferPool's map.
+     */
+    synchronized void written(int pageNo, boolean hasFreeSlot) throws IOException {
+        onDisk.set(pageNo, hasFreeSlot);
+        if (hasFreeSlot)
+        {
+            free.set(pageNo);
+        }
+        long[] word = onDisk.get(pageNo & ~7, (pageNo & ~7) + 8).toLongArray();
+        if (out == null)
+        {
+            // the file may be stale, so it starts over from the loaded bits
+            out = new RandomAccessFile(file, "rw");
+            out.setLength(0);
+            out.writeInt(numPages);
+            out.write(onDisk.toByteArray());
+        }
+        if (pageNo >= numPages)
+        {
+            numPages = pageNo + 1;
+            out.seek(0);
+            out.writeInt(numPages);
+        }
+        out.seek(HEADER_BYTES + pageNo / 8);
+        out.write(word.length == 0 ? 0 : (int) word[0]);
+    }
+
+    /**
+     * Closes the map file. A later write opens it again.
+     */
+    synchronized void close() throws IOException {
+        if (out != null)
+        {
+            out.close();
+            out = null;
+        }
+    }
+}
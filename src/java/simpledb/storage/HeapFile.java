@@ -8,10 +8,13 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -34,6 +37,10 @@ public class HeapFile implements DbFile {
 	public File f;
 	public TupleDesc td;
 	public RandomAccessFile rf;
+    /** Bumped after every writePage, so read-ahead can tell its pages went stale. */
+    private final AtomicLong pageWrites = new AtomicLong();
+    private final FreeSpaceMap freeSpace;
+    private final PageLSNMap lsns;
     public HeapFile(File f, TupleDesc td) {
         // TODO: some code goes here
         this.f = f;
@@ -44,6 +51,8 @@ public class HeapFile implements DbFile {
         catch (Exception e)
         {
         }
+        this.freeSpace = new FreeSpaceMap(f, numPages());
+        this.lsns = new PageLSNMap(f);
     }
 
     /**
@@ -84,18 +93,103 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) {
         // TODO: some code goes here
 	//
-	    byte[] b = new byte[BufferPool.getPageSize()];
-	    try{
-		    rf.seek((pid.getPageNumber()) * BufferPool.getPageSize());
-		    rf.read(b);
-		    return new HeapPage( new HeapPageId(this.getId(), pid.getPageNumber()), b);
-	    }
-	    catch (Exception e)
-	    {
-		    return null;
-	    }
+        return readPages(Collections.singletonList(pid)).get(0);
+    }
+
+    /**
+     * Reads the pages with positional reads, one per run of consecutive
+     * pages, so concurrent readers do not share a seek position. Pages past
+     * the end of the file read as empty; a page that cannot be read is null.
+     */
+    @Override
+    public List<Page> readPages(List<PageId> pids) {
+        int pageSize = BufferPool.getPageSize();
+        long[] offsets = new long[pids.size()];
+        int[] lengths = new int[pids.size()];
+        for (int i = 0; i < offsets.length; ++i)
+        {
+            offsets[i] = (long) pids.get(i).getPageNumber() * pageSize;
+            lengths[i] = pageSize;
+        }
+        List<Page> pages = new ArrayList<>(pids.size());
+        byte[][] blocks;
+        try{
+            blocks = CoalescedRead.readBlocks(rf.getChannel(), offsets, lengths);
+        }
+        catch (IOException e)
+        {
+            return new ArrayList<>(Collections.nCopies(pids.size(), null));
+        }
+        for (int i = 0; i < blocks.length; ++i)
+        {
+            byte[] data = blocks[i] != null ? blocks[i] : HeapPage.createEmptyPageData();
+            try{
+                pages.add(tracked(new HeapPage(new HeapPageId(this.getId(), pids.get(i).getPageNumber()), data)));
+            }
+            catch (IOException e)
+            {
+                pages.add(null);
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Reads a page straight into the given frame and returns a HeapPage that
+     * lives in it. Uses a positional read, like writePage, so it does not
+     * race with concurrent reads and writes of the file.
+     *
+     * @return the page, or null if it could not be read
+     */
+    HeapPage readPage(PageId pid, ByteBuffer frame) {
+        ByteBuffer dst = frame.duplicate();
+        dst.clear();
+        long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
+        try{
+            FileChannel channel = rf.getChannel();
+            while (dst.hasRemaining())
+            {
+                int n = channel.read(dst, offset + dst.position());
+                if (n < 0)
+                {
+                    break;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        // past the end of the file the page reads as empty
+        while (dst.hasRemaining())
+        {
+            dst.put((byte) 0);
+        }
+        return tracked(new HeapPage(new HeapPageId(this.getId(), pid.getPageNumber()), frame));
+    }
+
+    /**
+     * Whether an off-heap BufferPool should read this file's pages straight
+     * into its frames with {@link #readPage(PageId, ByteBuffer)}. Backends
+     * with their own page memory say no and are read with readPage.
+     */
+    boolean readsIntoFrames() {
+        return true;
+    }
+
+    /**
+     * Has a page read from this file keep the free-space map up to date.
+     */
+    HeapPage tracked(HeapPage page) {
+        page.trackFreeSpace(freeSpace);
+        return page;
+    }
 
-	
+    /**
+     * Returns how many times a page of this file has been written.
+     */
+    long getPageWrites() {
+        return pageWrites.get();
     }
 
     // see DbFile.java for javadocs
@@ -104,15 +198,26 @@ public class HeapFile implements DbFile {
         // not necessary for lab1
 	    byte[] b = ((HeapPage) page).getPageData();
         PageId pid = ((HeapPage) page).getId();
-	    try{
-		    rf.seek((pid.getPageNumber()) * BufferPool.getPageSize());
+        // the LSN is saved first, without losing the one of the copy on disk
+        int entry = lsns.writing(pid.getPageNumber(), b, page.getLSN(), Database.getLogFile().getId(), rf.getChannel());
+        // partitions, the page writer and checkpoints write concurrently, so
+        // the write must not go through the shared seek position
+        writeFully(ByteBuffer.wrap(b), (long) pid.getPageNumber() * BufferPool.getPageSize());
+        lsns.written(pid.getPageNumber(), entry);
+        pageWrites.incrementAndGet();
+        freeSpace.written(pid.getPageNumber(), ((HeapPage) page).hasFreeSlot());
 
-		    rf.write(b);
-	    }
-	    catch (Exception e)
-	    {
-	    }
+    }
 
+    /**
+     * Writes all of src at the given offset with positional writes.
+     */
+    private void writeFully(ByteBuffer src, long offset) throws IOException {
+        FileChannel channel = rf.getChannel();
+        while (src.hasRemaining())
+        {
+            channel.write(src, offset + src.position());
+        }
     }
 
     /**
@@ -128,35 +233,153 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // TODO: some code goes here
         // not necessary for lab1
-        for (int i =0 ; i < numPages(); ++i)
+        BufferPool bp = Database.getBufferPool();
+        if (bp.isRecordLocking())
         {
-
-            try{
-                HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(), i), Permissions.READ_WRITE);	
-                p.insertTuple(t);
-                return Arrays.asList(p);
+            return insertRecord(tid, t);
+        }
+        // only pages the free-space map says have room are locked; the page
+        // changed is returned pinned, so it is not written out before the
+        // BufferPool logs the change
+        for (int i = freeSpace.nextFree(0); i >= 0 && i < numPages(); i = freeSpace.nextFree(i + 1))
+        {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean locked = bp.holdsLock(tid, pid);
+            HeapPage p = (HeapPage) bp.getPinnedPage(tid, pid, Permissions.READ_WRITE);
+            if (p.hasFreeSlot())
+            {
+                return changed(tid, p, () -> p.insertTuple(t));
             }
-            catch (TransactionAbortedException e)
+            // the hint was stale; nothing was read from the page but its
+            // header, so a lock taken just for this can go again
+            freeSpace.setFree(i, false);
+            bp.unpinPage(tid, pid);
+            if (!locked)
             {
-                System.out.println("couldn't acquire page because of " + e);
-                throw e;
+                bp.unsafeReleasePage(tid, pid);
             }
-            catch(DbException e)
+        }
+        int numPages = appendEmptyPage();
+        HeapPage p = (HeapPage) bp.getPinnedPage(tid,new HeapPageId(getId(), numPages), Permissions.READ_WRITE);	
+        return changed(tid, p, () -> p.insertTuple(t));
+    }
+
+    /** A change to a page that may fail. */
+    private interface PageChange {
+        void apply() throws DbException;
+    }
+
+    /**
+     * Applies a change to a page pinned for it under page locking. The pin
+     * is handed to the BufferPool, which releases it once the change is
+     * logged, or released here if the change fails.
+     */
+    private List<Page> changed(TransactionId tid, HeapPage p, PageChange change) throws DbException {
+        try
+        {
+            change.apply();
+        }
+        catch (DbException e)
+        {
+            Database.getBufferPool().unpinPage(tid, p.getId());
+            throw e;
+        }
+        return Arrays.asList(p);
+    }
+
+    /**
+     * Returns the map of the pages of this file that have free slots.
+     */
+    public FreeSpaceMap getFreeSpaceMap() {
+        return freeSpace;
+    }
+
+    /**
+     * Returns the LSNs saved with the pages of this file.
+     */
+    public PageLSNMap getPageLSNMap() {
+        return lsns;
+    }
+
+    /**
+     * Returns the LSN saved with a page as read from this file, or 0 if
+     * there is none.
+     */
+    long savedLSN(HeapPage page) throws IOException {
+        return lsns.lsnOf(page.getId().getPageNumber(), page.getPageData(), Database.getLogFile().getId());
+    }
+
+    /**
+     * Closes the heap file, its free-space map and its LSN file. The
+     * HeapFile must not be used afterwards.
+     */
+    public void close() throws IOException {
+        try
+        {
+            freeSpace.close();
+        }
+        finally
+        {
+            try
             {
-                
+                lsns.close();
+            }
+            finally
+            {
+                rf.close();
             }
         }
+    }
+
+    /**
+     * Appends an empty page to the file.
+     *
+     * @return the number of the new page
+     */
+    private synchronized int appendEmptyPage() throws IOException {
         int numPages = numPages();
-        long currlen = rf.length();
-        rf.setLength(rf.length() + BufferPool.getPageSize());
-        rf.seek(currlen);
-        for (int i = 0; i < BufferPool.getPageSize() ;++i)
+        writeFully(ByteBuffer.wrap(HeapPage.createEmptyPageData()), (long) numPages * BufferPool.getPageSize());
+        freeSpace.written(numPages, true);
+        lsns.appended(numPages);
+        return numPages;
+    }
+
+    /**
+     * Inserts a tuple under record locking: the page is only locked
+     * INTENTION_EXCLUSIVE and the tuple goes into a free slot whose record
+     * the transaction can lock at once. A slot that is free but still
+     * locked belongs to a delete that has not committed yet, which an abort
+     * puts back, so it is skipped.
+     */
+    private List<Page> insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = freeSpace.nextFree(0); ; i = freeSpace.nextFree(i + 1))
         {
-            rf.writeByte(0);
+            if (i < 0 || i >= numPages())
+            {
+                i = appendEmptyPage();
+            }
+            HeapPageId pid = new HeapPageId(getId(), i);
+            HeapPage p = (HeapPage) bp.getPageForRecords(tid, pid);
+            synchronized (p)
+            {
+                for (int slot = 0; slot < p.numSlots; ++slot)
+                {
+                    if (!p.isSlotUsed(slot) && bp.tryLockRecord(tid, new RecordId(pid, slot)))
+                    {
+                        p.insertTuple(t, slot);
+                        p.markDirty(true, tid);
+                        return Arrays.asList(p);
+                    }
+                }
+                if (!p.hasFreeSlot())
+                {
+                    freeSpace.setFree(i, false);
+                }
+            }
+            bp.unpinPage(tid, pid);
         }
-        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,new HeapPageId(getId(), numPages), Permissions.READ_WRITE);	
-        p.insertTuple(t);
-        return Arrays.asList(p);
     }
 
     // see DbFile.java for javadocs
@@ -170,9 +393,64 @@ public class HeapFile implements DbFile {
         {
             throw new DbException("wrong table");
         }
-        HeapPage p =(HeapPage) Database.getBufferPool().getPage(tid,t.getRecordId().getPageId(), Permissions.READ_WRITE);	
-        p.deleteTuple(t);
-        return Arrays.asList(p);
+        BufferPool bp = Database.getBufferPool();
+        if (bp.isRecordLocking())
+        {
+            // the slot stays locked until the transaction completes, so no
+            // insert reuses it before the delete commits
+            bp.lockRecord(tid, t.getRecordId(), Permissions.READ_WRITE);
+            HeapPage p = (HeapPage) bp.getPageForRecords(tid, t.getRecordId().getPageId());
+            synchronized (p)
+            {
+                p.deleteTuple(t);
+                p.markDirty(true, tid);
+            }
+            return Arrays.asList(p);
+        }
+        HeapPage p =(HeapPage) bp.getPinnedPage(tid,t.getRecordId().getPageId(), Permissions.READ_WRITE);	
+        return changed(tid, p, () -> p.deleteTuple(t));
+    }
+
+    /**
+     * Sets one field of a record, locking it as deleteTuple does.
+     *
+     * @return the field's previous value
+     */
+    public Field updateField(TransactionId tid, RecordId rid, int field, Field value)
+            throws DbException, TransactionAbortedException {
+        if (rid.getPageId().getTableId() != getId())
+        {
+            throw new DbException("wrong table");
+        }
+        BufferPool bp = Database.getBufferPool();
+        HeapPage p;
+        if (bp.isRecordLocking())
+        {
+            bp.lockRecord(tid, rid, Permissions.READ_WRITE);
+            p = (HeapPage) bp.getPageForRecords(tid, rid.getPageId());
+        }
+        else
+        {
+            p = (HeapPage) bp.getPinnedPage(tid, rid.getPageId(), Permissions.READ_WRITE);
+        }
+        synchronized (p)
+        {
+            Field old;
+            try
+            {
+                old = p.updateField(rid.getTupleNumber(), field, value);
+            }
+            catch (DbException e)
+            {
+                if (!bp.isRecordLocking())
+                {
+                    bp.unpinPage(tid, rid.getPageId());
+                }
+                throw e;
+            }
+            p.markDirty(true, tid);
+            return old;
+        }
     }
 
     // see DbFile.java for javadocs
@@ -29,6 +29,10 @@ public class HeapFileIt extends AbstractDbFileIterator {
 	    private int numPages;
 	    private int tableid;
 	    private boolean open = false;
+	    private BufferAccessStrategy strategy;
+	    private ReadAhead readAhead;
+	    /** The page the iterator is on, which it keeps pinned. */
+	    private HeapPageId pinned;
 
 	    public HeapFileIt(TransactionId tid, int numPages, int t)
 	    {
@@ -42,18 +46,45 @@ public class HeapFileIt extends AbstractDbFileIterator {
 	    {
 			i = -1;
 		    open =true;
+			// big scans recycle a small ring of frames instead of flushing the pool
+			strategy = Database.getBufferPool().getBulkReadStrategy(numPages);
+			// read-ahead bypasses readPage, so leave subclasses that override
+			// it to read their own pages
+			DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+			readAhead = file.getClass() == HeapFile.class ? new ReadAhead((HeapFile) file, numPages) : null;
+	    }
+	    /**
+	     * Returns the read-ahead of the open scan, or null if it is closed or
+	     * does not read ahead.
+	     */
+	    public ReadAhead getReadAhead()
+	    {
+		    return readAhead;
+	    }
+	    private void unpin()
+	    {
+		    if (pinned != null)
+		    {
+			    Database.getBufferPool().unpinPage(tid, pinned);
+			    pinned = null;
+		    }
 	    }
 	    public void rewind()
 	    {
+		    unpin();
 		    i = -1;
 		    it = null;
+		    if (readAhead != null) readAhead.reset();
 	    }
 	    public void close()
 	    {
 		    super.close();
+		    unpin();
 		    it = null;
 		    i=-1;
 		    open = false;
+		    if (readAhead != null) readAhead.reset();
+		    readAhead = null;
 		}
 
 		public Tuple readNext() throws DbException, TransactionAbortedException
@@ -65,7 +96,12 @@ public class HeapFileIt extends AbstractDbFileIterator {
 				{
 					i++;
 					HeapPageId id = new HeapPageId(tableid, i);
-					it = ( (HeapPage)Database.getBufferPool().getPage(tid, id, Permissions.READ_ONLY)).iterator();
+					if (readAhead != null) readAhead.pageRequested(i);
+					// done with the previous page, so a one-page pool still works
+					unpin();
+					HeapPage page = (HeapPage)Database.getBufferPool().getPinnedPage(tid, id, Permissions.READ_ONLY, strategy, readAhead);
+					pinned = id;
+					it = page.iterator();
 					if (it == null){
 						 continue;
 					}
@@ -80,6 +116,8 @@ public class HeapFileIt extends AbstractDbFileIterator {
 			{
 				return it.next();
 			}
+			// ran off the end
+			unpin();
 			return null;
 		}
 }
@@ -7,6 +7,9 @@ import simpledb.common.Debug;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -21,14 +24,38 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
+    final int headerSize;
+    final int tupleSize;
 
     private TransactionId tid;
+    /** See Page#getLSN. */
+    private volatile long lsn;
 
+    /**
+     * The page image: header bytes, then numSlots fixed-size tuple slots.
+     * Tuples are decoded from it on demand rather than kept as objects. It is
+     * either a private heap buffer or a frame of the BufferPool's off-heap
+     * arena, in which case it is swapped for a heap copy when the frame is
+     * recycled.
+     * <p>
+     * Changes hold the page's monitor, as detach does. Reads do not: they
+     * read the field once, copy what they need out of that buffer, and
+     * then check that the buffer was not swapped meanwhile. If it was, the
+     * frame may already hold another page, so the read is repeated on the
+     * copy, which holds the same image.
+     */
+    private volatile ByteBuffer data;
+
+    /**
+     * Image to roll back to, or null while it is the same as the current
+     * image; it is copied on the first change after setBeforeImage.
+     */
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
+
+    /** The free-space map of the file the page was read from, if any. */
+    private volatile FreeSpaceMap freeSpace;
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -48,28 +75,23 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data, BufferPool.getPageSize())));
+    }
+
+    /**
+     * Create a HeapPage that reads and writes its contents in place in the
+     * given buffer, which must hold BufferPool.getPageSize() bytes from
+     * position 0. A read-only buffer is only read; the page switches to a
+     * private copy on its first change.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
         tid=  null;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
+        this.data = data;
     }
 
     /**
@@ -105,6 +127,9 @@ public class HeapPage implements Page {
             synchronized (oldDataLock) {
                 oldDataRef = oldData;
             }
+            if (oldDataRef == null) {
+                oldDataRef = getPageData();
+            }
             return new HeapPage(pid, oldDataRef);
         } catch (IOException e) {
             e.printStackTrace();
@@ -116,7 +141,62 @@ public class HeapPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
+        }
+    }
+
+    /**
+     * Returns the page's image as of the last setBeforeImage, i.e. what
+     * the last commit left, without the changes made since. Changes hold
+     * the page's monitor, so this never sees half of one.
+     */
+    synchronized byte[] committedImage() {
+        synchronized (oldDataLock) {
+            if (oldData != null) {
+                return oldData;
+            }
+        }
+        return getPageData();
+    }
+
+    /**
+     * Saves the current image as the before image if none is saved yet;
+     * called before every change to the page.
+     */
+    private void preserveBeforeImage() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
+        }
+    }
+
+    /**
+     * Swaps the frame this page lives in for a private heap copy. Called by
+     * the BufferPool before it reuses the frame, so anybody still holding
+     * this page keeps seeing its own contents.
+     */
+    synchronized void detach() {
+        data = ByteBuffer.wrap(getPageData());
+    }
+
+    /**
+     * Returns whether a read from buf, which was the page image when the
+     * read started, may have seen the frame being reused; see data.
+     */
+    private boolean swapped(ByteBuffer buf) {
+        // the reads from buf must not move past the check
+        VarHandle.acquireFence();
+        return data != buf;
+    }
+
+    /**
+     * Gives a page that is a view of read-only memory, such as a mapped
+     * file, a private copy to change.
+     */
+    private void copyOnWrite() {
+        if (data.isReadOnly()) {
+            detach();
         }
     }
 
@@ -128,21 +208,18 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in a slot.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private Tuple readTuple(int slotId) throws NoSuchElementException {
+        byte[] slot = new byte[tupleSize];
+        ByteBuffer buf;
+        do {
+            buf = data;
+            ByteBuffer view = buf.duplicate();
+            view.position(headerSize + slotId * tupleSize);
+            view.get(slot);
+        } while (swapped(buf));
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(slot));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -161,6 +238,26 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * Encode a tuple into a slot.
+     */
+    private void writeTuple(int slotId, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        ByteBuffer view = data.duplicate();
+        view.position(headerSize + slotId * tupleSize);
+        view.put(baos.toByteArray(), 0, tupleSize);
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -172,65 +269,12 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        byte[] page = new byte[BufferPool.getPageSize()];
+        ByteBuffer view = data.duplicate();
+        view.position(0);
+        view.get(page);
+        return page;
     }
 
     /**
@@ -255,7 +299,7 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // TODO: some code goes here
         // not necessary for lab1
         if (t.getRecordId().getPageId().equals(pid) == false)
@@ -265,8 +309,17 @@ public class HeapPage implements Page {
         int i = t.getRecordId().getTupleNumber();
         if (isSlotUsed(i))
         {
-            // TODO: some code goes here
+            preserveBeforeImage();
+            copyOnWrite();
             markSlotUsed(i, false);
+            // keep free slots zeroed, as getPageData used to write them
+            ByteBuffer view = data.duplicate();
+            view.position(headerSize + i * tupleSize);
+            view.put(new byte[tupleSize]);
+            if (freeSpace != null)
+            {
+                freeSpace.setFree(pid.getPageNumber(), true);
+            }
             return;
         }
         throw new DbException("tuple found but lowkey ignored");
@@ -280,27 +333,121 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // TODO: some code goes here
         // not necessary for lab1
         if (!t.getTupleDesc().equals(td))
         {
             throw new DbException("td mismatch");
         }
-        for (int i = 0 ; i < tuples.length; ++i)
+        for (int i = 0 ; i < numSlots; ++i)
         {
             if (!isSlotUsed(i))
             {
-                // TODO: some code goes here
-                tuples[i] = t;
+                preserveBeforeImage();
+                copyOnWrite();
+                writeTuple(i, t);
                 t.setRecordId(new RecordId(pid, i));
                 markSlotUsed(i, true);
+                freeSlotTaken();
                 return;
             }
         }
         throw new DbException("no space");
     }
 
+    /**
+     * Adds a tuple in the given slot, e.g. to put back a deleted tuple
+     * where it was.
+     *
+     * @throws DbException if the slot is in use or tupledesc is mismatch.
+     */
+    public synchronized void insertTuple(Tuple t, int slot) throws DbException {
+        if (!t.getTupleDesc().equals(td))
+        {
+            throw new DbException("td mismatch");
+        }
+        if (isSlotUsed(slot))
+        {
+            throw new DbException("slot " + slot + " in use");
+        }
+        preserveBeforeImage();
+        copyOnWrite();
+        writeTuple(slot, t);
+        t.setRecordId(new RecordId(pid, slot));
+        markSlotUsed(slot, true);
+        freeSlotTaken();
+    }
+
+    /**
+     * Sets one field of the tuple in a slot.
+     *
+     * @return the field's previous value
+     * @throws DbException if the slot is empty or the value's type is not
+     *                     the field's.
+     */
+    public synchronized Field updateField(int slot, int field, Field value) throws DbException {
+        if (!isSlotUsed(slot))
+        {
+            throw new DbException("slot " + slot + " is empty");
+        }
+        if (value.getType() != td.getFieldType(field))
+        {
+            throw new DbException("type mismatch");
+        }
+        preserveBeforeImage();
+        copyOnWrite();
+        Tuple t = readTuple(slot);
+        Field old = t.getField(field);
+        t.setField(field, value);
+        writeTuple(slot, t);
+        return old;
+    }
+
+    private void freeSlotTaken() {
+        if (freeSpace != null && !hasFreeSlot())
+        {
+            freeSpace.setFree(pid.getPageNumber(), false);
+        }
+    }
+
+    /**
+     * Returns true if some slot on this page is empty.
+     */
+    public boolean hasFreeSlot() {
+        for (int i = 0 ; i < numSlots; ++i)
+        {
+            if (!isSlotUsed(i))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Has the page keep a free-space map up to date as its slots fill and
+     * empty, starting with the page's current state.
+     */
+    void trackFreeSpace(FreeSpaceMap freeSpace) {
+        this.freeSpace = freeSpace;
+        if (hasFreeSlot())
+        {
+            freeSpace.setFree(pid.getPageNumber(), true);
+        }
+    }
+
+    /**
+     * Tells the page its changes are being thrown away, so that its
+     * free-space map gets the free space of the before image back.
+     */
+    void rolledBack() {
+        if (freeSpace != null && getBeforeImage().hasFreeSlot())
+        {
+            freeSpace.setFree(pid.getPageNumber(), true);
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -323,13 +470,21 @@ public class HeapPage implements Page {
         return tid;      
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of unused (i.e., empty) slots on this page.
      */
     public int getNumUnusedSlots() {
         // TODO: some code goes here
         int unused = 0;
-        for (int i = 0 ; i < this.getNumTuples(); ++i)
+        for (int i = 0 ; i < numSlots; ++i)
         {
             if (!isSlotUsed(i))
             {
@@ -346,7 +501,13 @@ public class HeapPage implements Page {
         // TODO: some code goes here
         int index = i / 8;
         int offset = i % 8;
-        return (header[index] >> (offset) & 1) == 1;
+        ByteBuffer buf;
+        boolean used;
+        do {
+            buf = data;
+            used = (buf.get(index) >> (offset) & 1) == 1;
+        } while (swapped(buf));
+        return used;
     }
 
     /**
@@ -360,12 +521,12 @@ public class HeapPage implements Page {
 
         if (value){
             byte b2 = ((byte) ( (1 << offset) ));
-            byte b1 = header[index];
-            header[index] = (byte)(b1 | b2);
+            byte b1 = data.get(index);
+            data.put(index, (byte)(b1 | b2));
         }
         else{
 
-            header[index] = (byte) (header[index] & (byte)(~ (1 << offset) ));
+            data.put(index, (byte) (data.get(index) & (byte)(~ (1 << offset) )));
         }
     }
 
@@ -381,11 +542,11 @@ public class HeapPage implements Page {
             @Override
             public boolean hasNext() {
                 int j = i;
-                while (j < HeapPage.this.getNumTuples() && !isSlotUsed(j))
+                while (j < numSlots && !isSlotUsed(j))
                 {
                     ++j;
                 }
-                if (j >= HeapPage.this.getNumTuples())
+                if (j >= numSlots)
                 {
                     return false;
                 }
@@ -396,12 +557,12 @@ public class HeapPage implements Page {
             public Tuple next() {
                 if (!hasNext()) throw new NoSuchElementException();
 
-                while (i < HeapPage.this.getNumTuples() && !isSlotUsed(i))
+                while (i < numSlots && !isSlotUsed(i))
                 {
                     ++i;
                 }
 
-                return tuples[i++];
+                return readTuple(i++);
 
             }
         };	    
@@ -4,12 +4,61 @@ import simpledb.transaction.*;
 
 public class Lock {
 
+    /**
+     * Lock modes. Pages are only ever locked SHARED or EXCLUSIVE; tables
+     * can be locked in any mode, the intention modes announcing page locks
+     * of that kind inside the table.
+     */
     public enum LockType {
-        SHARED, EXCLUSIVE
+        SHARED, EXCLUSIVE,
+        INTENTION_SHARED, INTENTION_EXCLUSIVE,
+        /** SHARED on the whole table plus INTENTION_EXCLUSIVE. */
+        SHARED_INTENTION_EXCLUSIVE;
+
+        // indexed by ordinal: S, X, IS, IX, SIX
+        private static final boolean[][] COMPATIBLE = {
+                {true, false, true, false, false},
+                {false, false, false, false, false},
+                {true, false, true, true, true},
+                {false, false, true, true, false},
+                {false, false, true, false, false},
+        };
+        private static final int[][] JOIN = {
+                {0, 1, 0, 4, 4},
+                {1, 1, 1, 1, 1},
+                {0, 1, 2, 3, 4},
+                {4, 1, 3, 3, 4},
+                {4, 1, 4, 4, 4},
+        };
+
+        /**
+         * Whether two transactions may hold these modes on the same object
+         * at once.
+         */
+        public boolean compatibleWith(LockType other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /**
+         * Returns the weakest mode that grants everything both modes grant.
+         */
+        public LockType join(LockType other) {
+            return values()[JOIN[ordinal()][other.ordinal()]];
+        }
+
+        /**
+         * Whether this mode grants everything the other one does. A table
+         * lock that implies a page lock mode makes page locks of that mode
+         * unnecessary.
+         */
+        public boolean implies(LockType other) {
+            return join(other) == this;
+        }
     }
 
     private LockType type;
     private TransactionId tid;
+    /** The page locked, or null for a table lock. */
     private PageId pid;
 
     public Lock(LockType type, TransactionId tid, PageId pid) {
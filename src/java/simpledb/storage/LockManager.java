@@ -1,157 +1,1073 @@
 package simpledb.storage;
 import java.util.*;
 
-import simpledb.common.Database;
 import simpledb.transaction.*;
-import java.util.concurrent.*;
-
-// Apparently the syncrhonized keyword makes it so that only one of these can run at atime.
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * LockManager keeps the locks of all transactions. Locking is hierarchical:
+ * before a transaction locks a page SHARED or EXCLUSIVE, it locks the page's
+ * table in the matching intention mode (see {@link Lock.LockType}). Once a
+ * transaction holds escalation-threshold page locks in one table, its next
+ * page request escalates to a SHARED or EXCLUSIVE lock on the whole table,
+ * and the page locks it covers are dropped, so a large scan or bulk delete
+ * needs a constant number of locks. Record locks extend the hierarchy one
+ * level down: the record's page is locked in an intention mode, so
+ * transactions changing different records of one page do not conflict.
+ * <p>
+ * Every locked page or table has a list of holders and a FIFO queue of
+ * waiting requests; a transaction that cannot be granted its lock parks on
+ * the object's condition variable until a release makes its request
+ * grantable, instead of retrying.
+ * <p>
+ * The lock table is split into STRIPES stripes by object, each with its own
+ * latch, so requests for pages in different stripes never contend. No
+ * thread ever holds two stripe latches at once.
+ * <p>
+ * Requests are granted strictly in queue order, so a stream of readers
+ * cannot starve a writer. The one exception is a lock upgrade (a holder of a
+ * shared lock asking for an exclusive one), which goes to the front of the
+ * queue and is granted as soon as it is compatible with the other holders.
+ * <p>
+ * Deadlock detection is kept off the grant path. Every waiting request
+ * records the transactions it waits for, which is updated whenever its
+ * object's holders or queue change; together these edges form the waits-for
+ * graph. A background {@link DeadlockDetector} searches the graph for
+ * cycles while any request is waiting, and picks a victim on each cycle.
+ * The victim's waiting request then fails with TransactionAbortedException,
+ * and the BufferPool that asked for the lock aborts the transaction on
+ * that thread, so pages are never rolled back under a running thread.
+ * <p>
+ * Instead of detecting deadlocks, the LockManager can prevent them by
+ * transaction age (a lower TransactionId is older), see {@link
+ * DeadlockPolicy}. Both prevention policies only ever let a transaction
+ * wait for younger ones, or only for older ones, so no cycle can form.
+ * <p>
+ * A transaction can also bound how long each of its requests waits and how
+ * many locks it holds (see {@link #setLockTimeout} and {@link
+ * #setMaxLocks}); a request past either bound aborts the transaction, so
+ * a lock storm sheds transactions instead of piling up waiting threads.
+ * <p>
+ * Every request is counted per page and per table (see {@link LockStats}):
+ * locks granted, requests that had to wait and for how long, deadlocks
+ * broken and aborts, so the pages transactions queue on can be found.
+ */
 public class LockManager {
-    
-    public Map<PageId, Queue<Lock>> lockTable;
-    private int randomForDebugging;
+
+    /** Number of stripes of the lock table; a power of two. */
+    public static final int STRIPES = 64;
+    /** Page locks in one table after which a transaction locks the table. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /**
+     * How deadlocks are dealt with.
+     */
+    public enum DeadlockPolicy {
+        /** Requests wait; the DeadlockDetector aborts the youngest on a cycle. */
+        DETECT,
+        /**
+         * A request may wait only for younger transactions; if it would wait
+         * for an older one, its transaction is aborted instead.
+         */
+        WAIT_DIE,
+        /**
+         * A request waits only for older transactions; younger transactions
+         * in its way are wounded: aborted right away if they are waiting for
+         * a lock, or as soon as they have to wait for one otherwise. A
+         * wounded transaction that never waits again just finishes.
+         */
+        WOUND_WAIT
+    }
+
+    /**
+     * The lock table key of a whole table; pages are keyed by PageId and
+     * records by RecordId.
+     */
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId)
+        {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof TableKey && ((TableKey) o).tableId == tableId;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Integer.hashCode(tableId);
+        }
+    }
+
+    /** A lock request that has not been granted yet. */
+    private static class Request {
+        final TransactionId tid;
+        /** The TableKey, PageId or RecordId locked. */
+        final Object resource;
+        final Lock.LockType type;
+        final boolean upgrade;
+        /** Set under the stripe latch; read without it by deadlock searches. */
+        volatile boolean granted;
+        /** Set when the request was dropped because its transaction ended. */
+        volatile boolean cancelled;
+        /** Set when the deadlock detector chose this transaction to abort. */
+        volatile boolean victim;
+        /** The transactions this request waits for. */
+        volatile Set<TransactionId> waitsFor = Collections.emptySet();
+
+        Request(TransactionId tid, Object resource, Lock.LockType type, boolean upgrade)
+        {
+            this.tid = tid;
+            this.resource = resource;
+            this.type = type;
+            this.upgrade = upgrade;
+        }
+    }
+
+    /** The holders and waiters of one page's or table's lock. */
+    private static class PageLocks {
+        final Map<TransactionId, Lock> holders = new LinkedHashMap<>();
+        final Deque<Request> queue = new ArrayDeque<>();
+        final Condition changed;
+
+        PageLocks(Condition changed)
+        {
+            this.changed = changed;
+        }
+
+        boolean isUnused()
+        {
+            return holders.isEmpty() && queue.isEmpty();
+        }
+    }
+
+    /** A part of the lock table and the latch that guards it. */
+    private static class Stripe {
+        final ReentrantLock latch = new ReentrantLock();
+        final Map<Object, PageLocks> lockTable = new HashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    /** The requests each transaction is waiting on. */
+    private final Map<TransactionId, Set<Request>> waiting = new ConcurrentHashMap<>();
+    /** The pages and tables each transaction holds a lock on. */
+    private final Map<TransactionId, Set<Object>> held = new ConcurrentHashMap<>();
+    /** The number of page locks each transaction holds, by table. */
+    private final Map<TransactionId, Map<Integer, Integer>> pageLockCounts = new ConcurrentHashMap<>();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    /** Number of requests in the waiting sets. */
+    private final AtomicInteger numWaiting = new AtomicInteger();
+    /** Guards detector. */
+    private final Object detectorLatch = new Object();
+    /** The deadlock detector thread, if one is running. */
+    private Thread detector;
+    private volatile DeadlockPolicy policy;
+    /** Transactions wounded under WOUND_WAIT that have not ended yet. */
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+    /** How long each request of a transaction may wait, in milliseconds. */
+    private final Map<TransactionId, Long> lockTimeouts = new ConcurrentHashMap<>();
+    /** How many pages, tables and records a transaction may hold locks on. */
+    private final Map<TransactionId, Integer> maxLocks = new ConcurrentHashMap<>();
+    /** Contention counters of all locks, of each table and of each page. */
+    private volatile LockStats.Counters totals = new LockStats.Counters();
+    private final Map<Integer, LockStats.Counters> tableCounters = new ConcurrentHashMap<>();
+    private final Map<PageId, LockStats.Counters> pageCounters = new ConcurrentHashMap<>();
 
     public LockManager() {
-        // System.out.println("made a lock manager");
-        lockTable = new ConcurrentHashMap<>();
-        // set randome to something random
-        Random rand = new Random();
-        randomForDebugging = rand.nextInt(100);
+        this(DeadlockPolicy.DETECT);
+    }
+
+    public LockManager(DeadlockPolicy policy) {
+        for (int i = 0; i < STRIPES; ++i)
+        {
+            stripes[i] = new Stripe();
+        }
+        this.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /**
+     * Switches how deadlocks are dealt with. Requests that are already
+     * waiting are only affected once they are woken.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    public int getEscalationThreshold() {
+        return escalationThreshold;
     }
 
-    public synchronized boolean detectDeadlock(TransactionId tid, PageId pid, Lock.LockType type, Set<TransactionId> visited) {
-        if (visited.contains(tid)) {
-                        System.out.println("ohhhh baby we have a deadlock");
+    /**
+     * Sets how many page locks a transaction may hold in one table before
+     * it locks the whole table instead; Integer.MAX_VALUE turns escalation
+     * off.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        if (escalationThreshold < 1)
+        {
+            throw new IllegalArgumentException("bad escalation threshold " + escalationThreshold);
+        }
+        this.escalationThreshold = escalationThreshold;
+    }
+
+    /**
+     * Bounds how long each lock request of a transaction waits; a request
+     * still waiting after that aborts the transaction. The bound holds
+     * until the transaction's locks are released.
+     *
+     * @param millis the longest wait, or 0 to wait as long as it takes
+     */
+    public void setLockTimeout(TransactionId tid, long millis) {
+        if (millis < 0)
+        {
+            throw new IllegalArgumentException("bad lock timeout " + millis);
+        }
+        if (millis == 0)
+        {
+            lockTimeouts.remove(tid);
+        }
+        else
+        {
+            lockTimeouts.put(tid, millis);
+        }
+    }
+
+    /**
+     * Bounds the number of pages, tables and records a transaction holds
+     * locks on; a request for one more aborts the transaction. Strengthening
+     * a lock already held is always allowed. The bound holds until the
+     * transaction's locks are released. Keep the escalation threshold below
+     * it, so that large scans lock their table instead of hitting it.
+     *
+     * @param max the most locks, or Integer.MAX_VALUE for no bound
+     */
+    public void setMaxLocks(TransactionId tid, int max) {
+        if (max < 1)
+        {
+            throw new IllegalArgumentException("bad lock budget " + max);
+        }
+        if (max == Integer.MAX_VALUE)
+        {
+            maxLocks.remove(tid);
+        }
+        else
+        {
+            maxLocks.put(tid, max);
+        }
+    }
+
+    /**
+     * Whether locking one more object would take a transaction past its
+     * lock budget.
+     */
+    private boolean overBudget(TransactionId tid, Object resource)
+    {
+        Integer max = maxLocks.get(tid);
+        if (max == null)
+        {
+            return false;
+        }
+        Set<Object> resources = held.getOrDefault(tid, Collections.emptySet());
+        return resources.size() >= max && !resources.contains(resource);
+    }
+
+    /**
+     * Returns the contention counters of all locks.
+     */
+    public LockStats getStats() {
+        return totals.snapshot();
+    }
+
+    /**
+     * Returns the contention counters of each table that has been locked,
+     * including its pages and records.
+     */
+    public Map<Integer, LockStats> getTableStats() {
+        Map<Integer, LockStats> stats = new HashMap<>();
+        tableCounters.forEach((tableId, c) -> stats.put(tableId, c.snapshot()));
+        return stats;
+    }
+
+    /**
+     * Returns the contention counters of each page that has been locked,
+     * including its records.
+     */
+    public Map<PageId, LockStats> getPageStats() {
+        Map<PageId, LockStats> stats = new HashMap<>();
+        pageCounters.forEach((pid, c) -> stats.put(pid, c.snapshot()));
+        return stats;
+    }
+
+    /**
+     * Returns the pages requests waited longest for, longest first; pages
+     * nothing ever waited for are left out.
+     *
+     * @param limit the most pages returned
+     */
+    public List<Map.Entry<PageId, LockStats>> getHotPages(int limit) {
+        List<Map.Entry<PageId, LockStats>> pages = new ArrayList<>();
+        for (Map.Entry<PageId, LockStats> e : getPageStats().entrySet())
+        {
+            if (e.getValue().getConflicts() > 0)
+            {
+                pages.add(e);
+            }
+        }
+        pages.sort(Comparator.comparingLong((Map.Entry<PageId, LockStats> e) -> e.getValue().getTotalWaitNanos())
+                .reversed());
+        return pages.subList(0, Math.min(limit, pages.size()));
+    }
+
+    /**
+     * Sets all contention counters back to zero.
+     */
+    public void resetStats() {
+        totals = new LockStats.Counters();
+        tableCounters.clear();
+        pageCounters.clear();
+    }
+
+    /**
+     * Returns the counters an event on a lock table key counts towards: all
+     * locks, its table and, for a page or record, its page.
+     */
+    private LockStats.Counters[] countersFor(Object resource)
+    {
+        if (resource instanceof TableKey)
+        {
+            int tableId = ((TableKey) resource).tableId;
+            return new LockStats.Counters[]{totals,
+                    tableCounters.computeIfAbsent(tableId, t -> new LockStats.Counters())};
+        }
+        PageId pid = resource instanceof RecordId ? ((RecordId) resource).getPageId() : (PageId) resource;
+        return new LockStats.Counters[]{totals,
+                tableCounters.computeIfAbsent(pid.getTableId(), t -> new LockStats.Counters()),
+                pageCounters.computeIfAbsent(pid, p -> new LockStats.Counters())};
+    }
+
+    /**
+     * Counts the outcome of a request that was not already granted by a
+     * lock the transaction held.
+     *
+     * @param waitNanos how long the request waited, or -1 if it did not
+     */
+    private void count(Object resource, boolean granted, long waitNanos, boolean aborted)
+    {
+        for (LockStats.Counters c : countersFor(resource))
+        {
+            if (granted)
+            {
+                c.acquisitions.increment();
+            }
+            if (waitNanos >= 0)
+            {
+                c.conflicts.increment();
+                c.waited(waitNanos);
+            }
+            if (aborted)
+            {
+                c.aborts.increment();
+            }
+        }
+    }
+
+    private Stripe stripeFor(Object resource)
+    {
+        int h = resource.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private static boolean conflicts(Lock.LockType a, Lock.LockType b)
+    {
+        return !a.compatibleWith(b);
+    }
+
+    /**
+     * Whether a request could be granted given the current holders of the
+     * object, ignoring the queue.
+     */
+    private static boolean compatible(PageLocks locks, Request r)
+    {
+        for (Lock held : locks.holders.values())
+        {
+            if (!held.getTid().equals(r.tid) && conflicts(held.getType(), r.type))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grant(PageLocks locks, Request r)
+    {
+        PageId pid = r.resource instanceof PageId ? (PageId) r.resource : null;
+        if (locks.holders.put(r.tid, new Lock(r.type, r.tid, pid)) == null)
+        {
+            held.computeIfAbsent(r.tid, t -> ConcurrentHashMap.newKeySet()).add(r.resource);
+            if (pid != null)
+            {
+                pageLockCounts.computeIfAbsent(r.tid, t -> new ConcurrentHashMap<>())
+                        .merge(pid.getTableId(), 1, Integer::sum);
+            }
+        }
+        r.granted = true;
+    }
+
+    private void ungrant(PageLocks locks, TransactionId tid, Object resource)
+    {
+        if (locks.holders.remove(tid) == null)
+        {
+            return;
+        }
+        Set<Object> resources = held.get(tid);
+        if (resources != null)
+        {
+            resources.remove(resource);
+        }
+        Map<Integer, Integer> counts = pageLockCounts.get(tid);
+        if (resource instanceof PageId && counts != null)
+        {
+            counts.computeIfPresent(((PageId) resource).getTableId(), (t, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    /**
+     * Grants queued requests from the front of the queue for as long as they
+     * are compatible, and wakes the object's waiters if any were granted.
+     */
+    private void grantWaiters(PageLocks locks)
+    {
+        boolean any = false;
+        while (!locks.queue.isEmpty() && compatible(locks, locks.queue.peekFirst()))
+        {
+            Request r = locks.queue.pollFirst();
+            grant(locks, r);
+            stopWaiting(r);
+            any = true;
+        }
+        if (any)
+        {
+            locks.changed.signalAll();
+        }
+        waitsForChanged(locks);
+    }
+
+    /**
+     * Updates the waits-for edges of an object's queued requests. Under a
+     * prevention policy the waiters are woken too, since a new edge may
+     * break the policy's rule.
+     */
+    private void waitsForChanged(PageLocks locks)
+    {
+        updateWaitsFor(locks);
+        if (policy != DeadlockPolicy.DETECT && !locks.queue.isEmpty())
+        {
+            locks.changed.signalAll();
+        }
+    }
+
+    /**
+     * Whether the waiting request has to give up under the current policy:
+     * it was wounded, or under WAIT_DIE it waits for an older transaction.
+     */
+    private boolean mustDie(Request r)
+    {
+        DeadlockPolicy p = policy;
+        if (p == DeadlockPolicy.WOUND_WAIT && wounded.contains(r.tid))
+        {
             return true;
         }
-        visited.add(tid);
-        if (lockTable.containsKey(pid)) {
-            for (Lock lock : lockTable.get(pid)) {
-                if (type == Lock.LockType.SHARED && lock.getType() == Lock.LockType.SHARED) {
-                    continue;
-                }
-                if (lock.getType() == Lock.LockType.EXCLUSIVE) {
-                    if (detectDeadlock(lock.getTid(), pid, Lock.LockType.EXCLUSIVE, visited)) {
-                        System.out.println("ohhhh baby we have a deadlock");
-                        return true;
-                    }
+        if (p == DeadlockPolicy.WAIT_DIE)
+        {
+            for (TransactionId blocker : r.waitsFor)
+            {
+                if (blocker.getId() < r.tid.getId())
+                {
+                    return true;
                 }
             }
         }
         return false;
     }
 
-    public synchronized boolean grantSharedLock(TransactionId tid, PageId pid) throws TransactionAbortedException 
+    /**
+     * Returns the younger transactions a waiting request waits for that
+     * have not been wounded yet, under WOUND_WAIT.
+     */
+    private List<TransactionId> toWound(Request r)
     {
-        if (lockTable.containsKey(pid))
+        List<TransactionId> younger = new ArrayList<>();
+        if (policy == DeadlockPolicy.WOUND_WAIT)
         {
-            Queue<Lock> locks = lockTable.get(pid);
-            locks.add(new Lock(Lock.LockType.SHARED, tid, pid));
-            for (Lock lock : locks)
+            for (TransactionId blocker : r.waitsFor)
             {
-                if (lock.getType() == Lock.LockType.EXCLUSIVE && lock.getTid() != tid)
+                if (blocker.getId() > r.tid.getId() && !wounded.contains(blocker))
                 {
-                    if (detectDeadlock(tid, pid, Lock.LockType.SHARED, new HashSet<TransactionId>()))
-                    {
-                        // System.out.println("Decided not to give a shared lock");
-                        Database.getBufferPool().transactionComplete(tid, false);
-                        throw new TransactionAbortedException();
-                    }
-                    else{
-                        return false;
-                    }
+                    younger.add(blocker);
                 }
             }
         }
-        else
+        return younger;
+    }
+
+    private void stopWaiting(Request r)
+    {
+        Set<Request> requests = waiting.get(r.tid);
+        if (requests != null && requests.remove(r))
         {
-            Queue<Lock> locks = new ConcurrentLinkedQueue<Lock>();
-            locks.add(new Lock(Lock.LockType.SHARED, tid, pid));
-            lockTable.put(pid, locks);
+            numWaiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Recomputes the waits-for edges of an object's queued requests: each waits
+     * for the holders it conflicts with and for the conflicting requests
+     * ahead of it in the queue, since it cannot be granted before them.
+     */
+    private static void updateWaitsFor(PageLocks locks)
+    {
+        List<Request> ahead = new ArrayList<>();
+        for (Request r : locks.queue)
+        {
+            Set<TransactionId> blockers = new HashSet<>();
+            for (Lock held : locks.holders.values())
+            {
+                if (!held.getTid().equals(r.tid) && conflicts(held.getType(), r.type))
+                {
+                    blockers.add(held.getTid());
+                }
+            }
+            for (Request a : ahead)
+            {
+                if (!a.tid.equals(r.tid) && conflicts(a.type, r.type))
+                {
+                    blockers.add(a.tid);
+                }
+            }
+            r.waitsFor = blockers;
+            ahead.add(r);
         }
-        // System.out.println("Granted shared lock to " + tid.getId() + " on " + pid.getPageNumber());
-        return true;
     }
 
-    public synchronized boolean grantExclusiveLock(TransactionId tid, PageId pid) throws TransactionAbortedException
+    /**
+     * Acquires a lock on a page for a transaction, waiting as long as it
+     * takes unless waiting would deadlock. The page's table is locked in the
+     * matching intention mode first; if the table lock already grants the
+     * page lock, no page lock is taken, and if the transaction holds
+     * escalation-threshold page locks in the table, the whole table is
+     * locked instead. Asking for a lock that is already held, or for a
+     * shared lock while holding an exclusive one, returns at once.
+     *
+     * @param type SHARED or EXCLUSIVE, or an intention mode if the
+     *             transaction locks records of the page
+     * @throws TransactionAbortedException if the transaction was chosen as
+     *                                     the victim of a deadlock, waited
+     *                                     past its lock timeout, would exceed
+     *                                     its lock budget, or ended while the
+     *                                     request waited; the caller aborts
+     *                                     the transaction
+     */
+    public void acquireLock(TransactionId tid, PageId pid, Lock.LockType type)
+            throws TransactionAbortedException
     {
-        if (lockTable.containsKey(pid))
+        int tableId = pid.getTableId();
+        Lock.LockType tableMode = acquire(tid, new TableKey(tableId), intentionFor(type));
+        if (tableMode.implies(type))
+        {
+            return;
+        }
+        if (getPageLockCount(tid, tableId) >= escalationThreshold)
         {
-            Queue<Lock> locks = lockTable.get(pid);
-            locks.add(new Lock(Lock.LockType.EXCLUSIVE, tid, pid));
-            for (Lock lock : locks)
+            escalate(tid, tableId, type);
+            return;
+        }
+        acquire(tid, pid, type);
+    }
+
+    /**
+     * Returns the intention mode a parent object is locked in before a child
+     * is locked in the given mode.
+     */
+    private static Lock.LockType intentionFor(Lock.LockType type)
+    {
+        return type == Lock.LockType.SHARED || type == Lock.LockType.INTENTION_SHARED
+                ? Lock.LockType.INTENTION_SHARED : Lock.LockType.INTENTION_EXCLUSIVE;
+    }
+
+    /**
+     * Acquires a lock on a record, after locking its table and page in the
+     * matching intention modes. No record lock is taken if the table or page
+     * lock already grants it.
+     *
+     * @param type SHARED or EXCLUSIVE
+     * @throws TransactionAbortedException as for acquireLock
+     */
+    public void acquireRecordLock(TransactionId tid, RecordId rid, Lock.LockType type)
+            throws TransactionAbortedException
+    {
+        Lock.LockType intention = intentionFor(type);
+        acquireLock(tid, rid.getPageId(), intention);
+        if (impliedByParents(tid, rid, type))
+        {
+            return;
+        }
+        acquire(tid, rid, type);
+    }
+
+    /**
+     * Acquires an exclusive lock on a record only if it can be granted at
+     * once, e.g. to claim a free slot that an uncommitted delete may still
+     * need back. The caller must hold an intention-exclusive lock on the
+     * record's page already.
+     *
+     * @return whether the lock is held
+     */
+    public boolean tryAcquireRecordLock(TransactionId tid, RecordId rid)
+    {
+        if (impliedByParents(tid, rid, Lock.LockType.EXCLUSIVE))
+        {
+            return true;
+        }
+        Stripe stripe = stripeFor(rid);
+        stripe.latch.lock();
+        try
+        {
+            PageLocks locks = stripe.lockTable.computeIfAbsent(rid, p -> new PageLocks(stripe.latch.newCondition()));
+            Lock current = locks.holders.get(tid);
+            if (current != null && current.getType().implies(Lock.LockType.EXCLUSIVE))
+            {
+                return true;
+            }
+            Request r = new Request(tid, rid, Lock.LockType.EXCLUSIVE, current != null);
+            if ((r.upgrade || locks.queue.isEmpty()) && compatible(locks, r))
+            {
+                grant(locks, r);
+                waitsForChanged(locks);
+                count(rid, true, -1, false);
+                return true;
+            }
+            if (locks.isUnused())
             {
-                if (lock.getTid() != tid)
+                stripe.lockTable.remove(rid, locks);
+            }
+            return false;
+        }
+        finally
+        {
+            stripe.latch.unlock();
+        }
+    }
+
+    private boolean impliedByParents(TransactionId tid, RecordId rid, Lock.LockType type)
+    {
+        Lock.LockType tableMode = getTableLock(tid, rid.getPageId().getTableId());
+        Lock.LockType pageMode = heldMode(tid, rid.getPageId());
+        return (tableMode != null && tableMode.implies(type)) || (pageMode != null && pageMode.implies(type));
+    }
+
+    /**
+     * Whether a transaction holds a lock on a record, or a table or page
+     * lock that grants it.
+     */
+    public boolean holdsRecordLock(TransactionId tid, RecordId rid, Lock.LockType type)
+    {
+        Lock.LockType mode = heldMode(tid, rid);
+        return (mode != null && mode.implies(type)) || impliedByParents(tid, rid, type);
+    }
+
+    /**
+     * Locks a whole table SHARED, or EXCLUSIVE if the transaction writes to
+     * it, and releases the page locks of the table that the table lock
+     * makes unnecessary.
+     */
+    private void escalate(TransactionId tid, int tableId, Lock.LockType type)
+            throws TransactionAbortedException
+    {
+        List<PageId> pages = new ArrayList<>();
+        boolean writes = intentionFor(type) == Lock.LockType.INTENTION_EXCLUSIVE;
+        for (Object resource : held.getOrDefault(tid, Collections.emptySet()))
+        {
+            if (resource instanceof PageId && ((PageId) resource).getTableId() == tableId)
+            {
+                pages.add((PageId) resource);
+                Lock.LockType mode = heldMode(tid, resource);
+                writes |= mode != null && intentionFor(mode) == Lock.LockType.INTENTION_EXCLUSIVE;
+            }
+        }
+        Lock.LockType tableMode = acquire(tid, new TableKey(tableId),
+                writes ? Lock.LockType.EXCLUSIVE : Lock.LockType.SHARED);
+        for (PageId pid : pages)
+        {
+            Lock.LockType pageMode = heldMode(tid, pid);
+            if (pageMode != null && tableMode.implies(pageMode))
+            {
+                release(tid, pid, false);
+            }
+        }
+    }
+
+    /**
+     * Returns the mode a transaction holds on a page or table, or null.
+     */
+    private Lock.LockType heldMode(TransactionId tid, Object resource)
+    {
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try
+        {
+            PageLocks locks = stripe.lockTable.get(resource);
+            Lock lock = locks == null ? null : locks.holders.get(tid);
+            return lock == null ? null : lock.getType();
+        }
+        finally
+        {
+            stripe.latch.unlock();
+        }
+    }
+
+    /**
+     * Returns the mode a transaction holds on a table, or null if it holds
+     * no table lock.
+     */
+    public Lock.LockType getTableLock(TransactionId tid, int tableId)
+    {
+        return heldMode(tid, new TableKey(tableId));
+    }
+
+    /**
+     * Returns the number of page locks a transaction holds in a table.
+     */
+    public int getPageLockCount(TransactionId tid, int tableId)
+    {
+        return pageLockCounts.getOrDefault(tid, Collections.emptyMap()).getOrDefault(tableId, 0);
+    }
+
+    /**
+     * Acquires a lock on a page or table, or strengthens the lock the
+     * transaction holds on it to the join of both modes.
+     *
+     * @return the mode the transaction holds afterwards
+     */
+    private Lock.LockType acquire(TransactionId tid, Object resource, Lock.LockType type)
+            throws TransactionAbortedException
+    {
+        if (overBudget(tid, resource))
+        {
+            count(resource, false, -1, true);
+            throw new TransactionAbortedException();
+        }
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try
+        {
+            PageLocks locks = stripe.lockTable.computeIfAbsent(resource, p -> new PageLocks(stripe.latch.newCondition()));
+            Lock current = locks.holders.get(tid);
+            if (current != null && current.getType().implies(type))
+            {
+                return current.getType();
+            }
+            Request r = current == null ? new Request(tid, resource, type, false)
+                    : new Request(tid, resource, current.getType().join(type), true);
+            // only an upgrade may pass the queue
+            if ((r.upgrade || locks.queue.isEmpty()) && compatible(locks, r))
+            {
+                grant(locks, r);
+                if (r.upgrade)
                 {
-                    if (detectDeadlock(tid, pid, Lock.LockType.EXCLUSIVE, new HashSet<TransactionId>()))
+                    waitsForChanged(locks);
+                }
+                count(resource, true, -1, false);
+                return r.type;
+            }
+            if (r.upgrade)
+            {
+                locks.queue.addFirst(r);
+            }
+            else
+            {
+                locks.queue.addLast(r);
+            }
+            waiting.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(r);
+            numWaiting.incrementAndGet();
+            waitsForChanged(locks);
+            if (policy == DeadlockPolicy.DETECT)
+            {
+                startDetector();
+            }
+            long queued = System.nanoTime();
+            Long timeout = lockTimeouts.get(tid);
+            long deadline = timeout == null ? 0 : queued + timeout * 1000000;
+            boolean died = false;
+            while (!r.granted && !r.cancelled && !r.victim)
+            {
+                if (mustDie(r))
+                {
+                    died = true;
+                    break;
+                }
+                List<TransactionId> younger = toWound(r);
+                if (!younger.isEmpty())
+                {
+                    // wounding visits other stripes, so it runs without ours
+                    stripe.latch.unlock();
+                    try
+                    {
+                        for (TransactionId t : younger)
+                        {
+                            wounded.add(t);
+                            abortWaiting(t, false);
+                        }
+                    }
+                    finally
+                    {
+                        stripe.latch.lock();
+                    }
+                    continue;
+                }
+                try
+                {
+                    if (timeout == null)
                     {
-                        // System.out.println("Decided not to give a exclusive lock");
-                        // abortion time
-                        Database.getBufferPool().transactionComplete(tid, false);
-                        throw new TransactionAbortedException();
+                        locks.changed.await();
                     }
-                    else{
-                        return false;
+                    else if (locks.changed.awaitNanos(deadline - System.nanoTime()) <= 0 && !r.granted)
+                    {
+                        died = true;
+                        break;
                     }
                 }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    died = true;
+                    break;
+                }
+            }
+            count(resource, r.granted, System.nanoTime() - queued, !r.granted && !r.cancelled);
+            if (r.granted)
+            {
+                return r.type;
+            }
+            if (died)
+            {
+                locks.queue.remove(r);
+                stopWaiting(r);
+                grantWaiters(locks);
+            }
+            if (locks.isUnused())
+            {
+                stripe.lockTable.remove(resource, locks);
             }
         }
-        else
+        finally
         {
-            Queue<Lock> locks = new ConcurrentLinkedQueue<Lock>();
-            locks.add(new Lock(Lock.LockType.EXCLUSIVE, tid, pid));
-            lockTable.put(pid, locks);
+            stripe.latch.unlock();
         }
-        // System.out.println("Granted exc lock to " + tid.getId() + " on " + pid.getPageNumber());
-        return true;
+        throw new TransactionAbortedException();
     }
 
-    public synchronized boolean releaseLocks(TransactionId tid, PageId pid)
+    private void startDetector()
     {
-        if (lockTable.containsKey(pid))
+        synchronized (detectorLatch)
         {
-            Queue<Lock> locks = lockTable.get(pid);
-            for (Lock lock : locks)
+            if (detector == null)
             {
-                if (lock.getTid() == tid)
-                {
-                    locks.remove(lock);
-                }
+                detector = new Thread(new DeadlockDetector(this), "deadlock detector");
+                detector.setDaemon(true);
+                detector.start();
             }
-            if (locks.size() == 0)
+        }
+    }
+
+    /**
+     * Called by the detector after each search; the detector stops once no
+     * request is waiting.
+     */
+    boolean keepDetecting()
+    {
+        synchronized (detectorLatch)
+        {
+            if (numWaiting.get() > 0)
             {
-                lockTable.remove(pid);
+                return true;
             }
-            return true;
+            detector = null;
+            return false;
         }
-        return false;
     }
 
-    public synchronized boolean releaseAllLocks(TransactionId tid)
+    /**
+     * Returns a snapshot of the waits-for graph: for each waiting
+     * transaction, the transactions it waits for. The edges of different
+     * pages are not read at the same instant, so the snapshot may contain a
+     * cycle that never existed all at once; aborting for it is safe, just
+     * unnecessary.
+     */
+    Map<TransactionId, Set<TransactionId>> waitsForGraph()
     {
-        for (PageId pid : lockTable.keySet())
+        Map<TransactionId, Set<TransactionId>> graph = new HashMap<>();
+        for (Map.Entry<TransactionId, Set<Request>> e : waiting.entrySet())
         {
-            releaseLocks(tid, pid);
+            for (Request r : e.getValue())
+            {
+                if (!r.granted && !r.cancelled && !r.victim && !r.waitsFor.isEmpty())
+                {
+                    graph.computeIfAbsent(e.getKey(), t -> new HashSet<>()).addAll(r.waitsFor);
+                }
+            }
         }
-        return true;
+        return graph;
+    }
+
+    /**
+     * Makes every waiting request of a transaction fail, so that its thread
+     * aborts the transaction.
+     *
+     * @return whether the transaction was still waiting
+     */
+    boolean chooseVictim(TransactionId tid)
+    {
+        return abortWaiting(tid, true);
     }
 
-    public synchronized boolean holdsLock(TransactionId tid, PageId pid)
+    /**
+     * Makes every waiting request of a transaction fail, counting each as a
+     * deadlock if the detector found one.
+     */
+    private boolean abortWaiting(TransactionId tid, boolean deadlock)
     {
-        if (lockTable.containsKey(pid))
+        boolean any = false;
+        for (Request r : new ArrayList<>(waiting.getOrDefault(tid, Collections.emptySet())))
         {
-            Queue<Lock> locks = lockTable.get(pid);
-            for (Lock lock : locks)
+            Stripe stripe = stripeFor(r.resource);
+            stripe.latch.lock();
+            try
             {
-                if (lock.getTid() == tid)
+                PageLocks locks = stripe.lockTable.get(r.resource);
+                if (locks == null || !locks.queue.remove(r))
                 {
-                    return true;
+                    continue;
+                }
+                r.victim = true;
+                if (deadlock)
+                {
+                    for (LockStats.Counters c : countersFor(r.resource))
+                    {
+                        c.deadlocks.increment();
+                    }
                 }
+                stopWaiting(r);
+                locks.changed.signalAll();
+                grantWaiters(locks);
+                any = true;
+            }
+            finally
+            {
+                stripe.latch.unlock();
             }
         }
-        return false;
+        return any;
+    }
+
+    /**
+     * Releases the lock a transaction holds on a page, and drops any request
+     * of the transaction still waiting for it. A table lock that covers the
+     * page stays.
+     */
+    public boolean releaseLocks(TransactionId tid, PageId pid)
+    {
+        return release(tid, pid, true);
+    }
+
+    /**
+     * Releases the lock a transaction holds on a page or table, and if
+     * dropWaiting is set, drops its requests still waiting for it.
+     */
+    private boolean release(TransactionId tid, Object resource, boolean dropWaiting)
+    {
+        Stripe stripe = stripeFor(resource);
+        stripe.latch.lock();
+        try
+        {
+            PageLocks locks = stripe.lockTable.get(resource);
+            if (locks == null)
+            {
+                return false;
+            }
+            ungrant(locks, tid, resource);
+            Iterator<Request> it = locks.queue.iterator();
+            while (dropWaiting && it.hasNext())
+            {
+                Request r = it.next();
+                if (r.tid.equals(tid))
+                {
+                    it.remove();
+                    stopWaiting(r);
+                    r.cancelled = true;
+                    locks.changed.signalAll();
+                }
+            }
+            grantWaiters(locks);
+            if (locks.isUnused())
+            {
+                stripe.lockTable.remove(resource);
+            }
+            return true;
+        }
+        finally
+        {
+            stripe.latch.unlock();
+        }
     }
 
+    /**
+     * Releases every lock of a transaction and drops its waiting requests.
+     * Only the objects the transaction holds or waits on are visited, so the
+     * cost does not depend on how many other objects are locked.
+     */
+    public boolean releaseAllLocks(TransactionId tid)
+    {
+        Set<Object> resources = new HashSet<>(held.getOrDefault(tid, Collections.emptySet()));
+        for (Request r : waiting.getOrDefault(tid, Collections.emptySet()))
+        {
+            resources.add(r.resource);
+        }
+        for (Object resource : resources)
+        {
+            release(tid, resource, true);
+        }
+        held.remove(tid);
+        pageLockCounts.remove(tid);
+        wounded.remove(tid);
+        lockTimeouts.remove(tid);
+        maxLocks.remove(tid);
+        waiting.computeIfPresent(tid, (t, requests) -> requests.isEmpty() ? null : requests);
+        return true;
+    }
 
+    /**
+     * Whether a transaction holds a lock on a page, or a table lock that
+     * lets it read the page.
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid)
+    {
+        if (heldMode(tid, pid) != null)
+        {
+            return true;
+        }
+        Lock.LockType tableMode = getTableLock(tid, pid.getTableId());
+        return tableMode != null && tableMode.implies(Lock.LockType.SHARED);
+    }
 }
@@ -0,0 +1,90 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A snapshot of the LockManager's contention counters for one page, one
+ * table, or all locks. The counters of a page include the locks on its
+ * records, and those of a table include the locks on its pages and records.
+ *
+ * @see LockManager#getStats()
+ */
+public final class LockStats {
+
+    private final long acquisitions;
+    private final long conflicts;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long deadlocks;
+    private final long aborts;
+
+    LockStats(long acquisitions, long conflicts, long totalWaitNanos, long maxWaitNanos,
+              long deadlocks, long aborts) {
+        this.acquisitions = acquisitions;
+        this.conflicts = conflicts;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.deadlocks = deadlocks;
+        this.aborts = aborts;
+    }
+
+    /** Returns the number of locks granted or strengthened. */
+    public long getAcquisitions() {
+        return acquisitions;
+    }
+
+    /** Returns the number of requests that had to wait. */
+    public long getConflicts() {
+        return conflicts;
+    }
+
+    /** Returns the time all requests spent waiting, in nanoseconds. */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    /** Returns the longest time a single request waited, in nanoseconds. */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    /** Returns the number of waiting requests the deadlock detector broke. */
+    public long getDeadlocks() {
+        return deadlocks;
+    }
+
+    /**
+     * Returns the number of requests that aborted their transaction: deadlock
+     * victims, prevention policy aborts, timeouts and lock budget overruns.
+     */
+    public long getAborts() {
+        return aborts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("acquisitions=%d conflicts=%d wait=%.1fms maxWait=%.1fms deadlocks=%d aborts=%d",
+                acquisitions, conflicts, totalWaitNanos / 1e6, maxWaitNanos / 1e6, deadlocks, aborts);
+    }
+
+    /** The live counters behind a LockStats. */
+    static final class Counters {
+        final LongAdder acquisitions = new LongAdder();
+        final LongAdder conflicts = new LongAdder();
+        final LongAdder totalWaitNanos = new LongAdder();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+        final LongAdder deadlocks = new LongAdder();
+        final LongAdder aborts = new LongAdder();
+
+        void waited(long nanos) {
+            totalWaitNanos.add(nanos);
+            maxWaitNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        LockStats snapshot() {
+            return new LockStats(acquisitions.sum(), conflicts.sum(), totalWaitNanos.sum(), maxWaitNanos.get(),
+                    deadlocks.sum(), aborts.sum());
+        }
+    }
+}
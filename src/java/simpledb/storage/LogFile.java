@@ -1,16 +1,21 @@
 package simpledb.storage;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.transaction.TransactionId;
 
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -22,23 +27,30 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening); BufferPool latches each of its partitions
+while it changes them (for similar reasons.)  Problem is that BufferPool
+writes log records (on page flushed) and the log file reads and writes
+BufferPool pages (on rollback, checkpoints and recovery.)  This can lead
+to deadlock.  For that reason, any LogFile operation that needs to
+access the BufferPool must not be declared synchronized; it holds this
+monitor only while it reads or appends to the log, and goes to the
+BufferPool outside it, like:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
-       synchronized (this) {
-
-       ..
-
-       }
+    synchronized (this) {
+       .. find the records ..
+    }
+    .. read and change the pages through the BufferPool ..
+    synchronized (this) {
+       .. append the record ..
     }
 </pre>
+
+BufferPool in turn latches one partition at a time and takes no
+monitor of its own, so transactions keep running while a transaction
+rolls back or a checkpoint is taken.  Recovery is the exception: it
+holds this monitor throughout, as it runs before any transaction does.
 */
 
 /**
@@ -46,11 +58,17 @@ must not be declared synchronized and must begin with a block like:
  *
  * <ul>
  *
- * <li> The first long integer of the file represents the offset of the
- * last written checkpoint, or -1 if there are no checkpoints
+ * <li> The log file itself holds two long integers: the offset of the
+ * last written checkpoint, or -1 if there are no checkpoints, and the id
+ * of the log, drawn at random whenever the log is begun anew.  The page
+ * LSNs saved with the heap files are tied to it (see PageLSNMap).
  *
- * <li> All additional data in the log consists of log records.  Log
- * records are variable length.
+ * <li> The log records are kept in segment files named after the log
+ * file with a segment number appended: log.1, log.2, and so on.  The
+ * offset of a record is its segment number times 2^32 plus its position
+ * in the segment, so offsets only ever grow and serve as LSNs.  A record
+ * never spans segments; a new segment is begun once the current one
+ * reaches the segment size.  Log records are variable length.
  *
  * <li> Each log record begins with an integer type and a long integer
  * transaction id.
@@ -58,8 +76,8 @@ must not be declared synchronized and must begin with a block like:
  * <li> Each log record ends with a long integer file offset representing
  * the position in the log file where the record began.
  *
- * <li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
- * CHECKPOINT
+ * <li> There are nine record types: ABORT, COMMIT, UPDATE, BEGIN,
+ * CHECKPOINT, INSERT, DELETE, FIELD_UPDATE and COMPENSATION
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  *
@@ -68,11 +86,38 @@ must not be declared synchronized and must begin with a block like:
  * accessed with the LogFile.readPageData() and LogFile.writePageData()
  * methods.  See LogFile.print() for an example.
  *
+ * <li> INSERT, DELETE and FIELD_UPDATE records each hold a change to one
+ * record of a heap page instead of whole page images: the RecordId, and
+ * the inserted or deleted tuple, or the field number and the field's
+ * before and after values.  See TupleDelta.
+ *
+ * <li> COMPENSATION records each hold a change that rollback took back:
+ * the offset of the record of the change, its record type, and the
+ * TupleDelta of the change, or for an UPDATE record the before image it
+ * put back.  Rollback logs one for every change it takes back, so that
+ * the LSN of every page covers every change the page holds; recovery
+ * redoes them like any other change, and does not take back a change
+ * again once it has one.
+ *
  * <li> CHECKPOINT records consist of active transactions at the time
- * the checkpoint was taken and their first log record on disk.  The format
- * of the record is an integer count of the number of transactions, as well
- * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * the checkpoint was taken and their first log record on disk, and of the
+ * pages dirty at that time.  The format of the record is an integer count
+ * of the number of transactions, as well as a long integer transaction id
+ * and a long integer first record offset for each active transaction;
+ * then an integer count of the number of dirty pages, as well as the
+ * serialized page id (an integer length and that many integers) and a long
+ * integer offset no later than its first change not on disk for each
+ * dirty page.
+ *
+ * <li> Checkpoints are fuzzy: transactions keep running while one is
+ * taken.  Recovery redoes the changes after the last checkpoint and the
+ * earlier changes to pages dirty then.  A segment is deleted whole once
+ * it is before the last checkpoint and holds no record of an active
+ * transaction and no change to a page that is still dirty.
+ *
+ * <li> Each heap page is written out with the LSN of the last record it
+ * holds the change of, and recovery redoes a change only on a page whose
+ * LSN is older than the change.
  *
  * </ul>
  */
@@ -87,17 +132,46 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int INSERT_RECORD = 6;
+    static final int DELETE_RECORD = 7;
+    static final int FIELD_UPDATE_RECORD = 8;
+    static final int COMPENSATION_RECORD = 9;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Offsets hold the segment number above these bits. */
+    static final int SEGMENT_SHIFT = 32;
+    public static final long DEFAULT_SEGMENT_BYTES = 16L << 20;
+
+    int segment; // the segment appended to //protected by this
+    int firstSegment; // the oldest segment kept //protected by this
+    private volatile long segmentBytes = DEFAULT_SEGMENT_BYTES;
+
     long currentOffset = -1;//protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
 
+    /** See getId. */
+    private volatile long id;
+
+    /*
+    Group commit: logCommit appends its record and then waits until the
+    log is forced past it. The first committer to find no force running
+    becomes the leader: it waits up to maxCommitDelayMicros for others to
+    append theirs, forces the log once without holding this, and releases
+    every committer whose record the force covered. The log is durable up
+    to forced, an offset.
+    */
+    private final Object forceLatch = new Object();
+    private long forced = 0; //protected by forceLatch
+    private boolean forcing = false; //protected by forceLatch
+    private long forces = 0; //protected by forceLatch
+    private volatile long maxCommitDelayMicros = 0;
+
     /**
      * Constructor.
      * Initialize and back the log file with the specified file.
@@ -112,9 +186,29 @@ public class LogFile {
      */
     public LogFile(File f) throws IOException {
         this.logFile = f;
-        raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
 
+        // find the segments left by an earlier run
+        firstSegment = Integer.MAX_VALUE;
+        String prefix = f.getName() + ".";
+        String[] names = f.getAbsoluteFile().getParentFile().list();
+        for (String name : names == null ? new String[0] : names) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()
+                    && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                int n = Integer.parseInt(name.substring(prefix.length()));
+                firstSegment = Math.min(firstSegment, n);
+                segment = Math.max(segment, n);
+            }
+        }
+        if (segment == 0) {
+            firstSegment = segment = 1;
+        }
+        raf = new RandomAccessFile(segmentFile(segment), "rw");
+        raf.seek(raf.length());
+        currentOffset = position();
+        forced = currentOffset;
+        id = readId();
+
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
         // public void run() { shutdown(); }
@@ -133,14 +227,119 @@ public class LogFile {
         totalRecords++;
         if (recoveryUndecided) {
             recoveryUndecided = false;
-            raf.seek(0);
+            raf.close();
+            for (int n = firstSegment; n <= segment; n++) {
+                segmentFile(n).delete();
+            }
+            long fresh;
+            do {
+                fresh = new Random().nextLong();
+            } while (fresh == 0 || fresh == id);
+            id = fresh;
+            writeCheckpointPointer(NO_CHECKPOINT_ID);
+            firstSegment = segment = 1;
+            raf = new RandomAccessFile(segmentFile(segment), "rw");
             raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            currentOffset = position();
+            restart();
+        } else if (raf.getFilePointer() >= segmentBytes) {
+            // the old segment is forced before it is closed, since a group
+            // force may be about to force the new one instead
+            raf.getChannel().force(true);
+            raf.close();
+            segment++;
+            raf = new RandomAccessFile(segmentFile(segment), "rw");
+            raf.setLength(0);
+            currentOffset = position();
+            forced(currentOffset);
+        }
+    }
+
+    File segmentFile(int n) {
+        return new File(logFile.getPath() + "." + n);
+    }
+
+    static long offset(int segment, long position) {
+        return ((long) segment << SEGMENT_SHIFT) + position;
+    }
+
+    static int segmentOf(long offset) {
+        return (int) (offset >>> SEGMENT_SHIFT);
+    }
+
+    static long positionOf(long offset) {
+        return offset & ((1L << SEGMENT_SHIFT) - 1);
+    }
+
+    /** Returns the offset the next record appended will get. */
+    private long position() throws IOException {
+        return offset(segment, raf.getFilePointer());
+    }
+
+    /**
+     * Sets how large a segment grows before the log moves on to a new one.
+     * Smaller segments let checkpoints reclaim the log sooner.
+     */
+    public void setSegmentBytes(long bytes) {
+        if (bytes <= 0 || bytes >= 1L << SEGMENT_SHIFT) {
+            throw new IllegalArgumentException("bad segment size " + bytes);
+        }
+        segmentBytes = bytes;
+    }
+
+    /**
+     * Returns the number of segment files the log is kept in.
+     */
+    public synchronized int getSegmentCount() {
+        return segment - firstSegment + 1;
+    }
+
+    /**
+     * Returns the LSN the next log record will get, or an earlier one. A
+     * change that is about to be logged has its page recorded as dirty
+     * since then.
+     */
+    public synchronized long nextLSN() {
+        // the first append throws the old log out and starts over
+        return recoveryUndecided ? offset(1, 0) : currentOffset;
+    }
+
+    private long readCheckpointPointer() throws IOException {
+        if (logFile.length() < LONG_SIZE) {
+            return NO_CHECKPOINT_ID;
+        }
+        try (RandomAccessFile header = new RandomAccessFile(logFile, "r")) {
+            return header.readLong();
         }
     }
 
+    private long readId() throws IOException {
+        if (logFile.length() < 2 * LONG_SIZE) {
+            return 0;
+        }
+        try (RandomAccessFile header = new RandomAccessFile(logFile, "r")) {
+            header.seek(LONG_SIZE);
+            return header.readLong();
+        }
+    }
+
+    private void writeCheckpointPointer(long offset) throws IOException {
+        try (RandomAccessFile header = new RandomAccessFile(logFile, "rw")) {
+            header.setLength(2 * LONG_SIZE);
+            header.writeLong(offset);
+            header.writeLong(id);
+            header.getChannel().force(true);
+        }
+    }
+
+    /**
+     * Returns the id of this log. An LSN is only meaningful together with
+     * the id of the log it is from, since a log begun anew reuses offsets.
+     */
+    public long getId() {
+        return id;
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
@@ -152,47 +351,175 @@ public class LogFile {
      * @param tid The aborting transaction.
      */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
-        // calls rollback
+        // rollback only works for live transactions (needs
+        // tidToFirstLogRecord), so it runs before the record is written.
+        // The transaction's locks keep others off its changes meanwhile.
+        rollback(tid);
+        long record;
+        synchronized (this) {
+            preAppend();
+            //Debug.log("ABORT");
+
+            raf.writeInt(ABORT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = position();
+            tidToFirstLogRecord.remove(tid.getId());
+            record = currentOffset;
+        }
+        forceGroup(record);
+    }
 
-        synchronized (Database.getBufferPool()) {
+    /**
+     * Write a commit record to disk for the specified tid,
+     * and force the log to disk.
+     *
+     * @param tid The committing transaction.
+     */
+    public void logCommit(TransactionId tid) throws IOException {
+        long record;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = position();
+            tidToFirstLogRecord.remove(tid.getId());
+            record = currentOffset;
+        }
+        forceGroup(record);
+    }
 
+    /**
+     * Returns once the log is forced up to the given offset, forcing it
+     * as the leader of a group of committers if no force is running.
+     */
+    private void forceGroup(long record) throws IOException {
+        synchronized (forceLatch) {
+            while (forced < record) {
+                if (!forcing) {
+                    forcing = true;
+                    break;
+                }
+                try {
+                    forceLatch.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted waiting for the log to be forced");
+                }
+            }
+            if (forced >= record) {
+                return;
+            }
+        }
+        // we lead: let others append, then force for all of them
+        long upTo = -1;
+        try {
+            long delay = maxCommitDelayMicros;
+            if (delay > 0) {
+                LockSupport.parkNanos(delay * 1000);
+            }
+            FileChannel channel;
+            long seen;
             synchronized (this) {
-                preAppend();
-                //Debug.log("ABORT");
-                //should we verify that this is a live transaction?
-
-                // must do this here, since rollback only works for
-                // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
-
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                seen = currentOffset;
+                channel = raf.getChannel();
+            }
+            try {
+                channel.force(true);
+                upTo = seen;
+            } catch (ClosedChannelException e) {
+                // the log moved on to a new segment meanwhile
                 force();
-                tidToFirstLogRecord.remove(tid.getId());
+            }
+        } finally {
+            // on failure the waiters wake up and one of them leads instead
+            synchronized (forceLatch) {
+                forcing = false;
+                forced(upTo);
             }
         }
     }
 
     /**
-     * Write a commit record to disk for the specified tid,
-     * and force the log to disk.
-     *
-     * @param tid The committing transaction.
+     * Records that the log is durable up to the given offset, if any, and
+     * releases the committers waiting for it.
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    private void forced(long upTo) {
+        synchronized (forceLatch) {
+            if (upTo >= 0) {
+                forced = Math.max(forced, upTo);
+                forces++;
+            }
+            forceLatch.notifyAll();
+        }
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Starts counting durable offsets over, for a log whose end moved
+     * back: a new log, or one whose torn tail recovery cut off.
+     */
+    private void restart() {
+        synchronized (forceLatch) {
+            forced = currentOffset;
+        }
+    }
+
+    /**
+     * Sets how long the leader of a group commit waits for more committers
+     * before it forces the log. 0 forces at once; committers that arrive
+     * during a force still share the next one.
+     */
+    public void setMaxCommitDelayMicros(long micros) {
+        if (micros < 0) {
+            throw new IllegalArgumentException("bad commit delay " + micros);
+        }
+        maxCommitDelayMicros = micros;
+    }
+
+    public long getMaxCommitDelayMicros() {
+        return maxCommitDelayMicros;
+    }
+
+    /**
+     * Returns the number of times the log has been forced.
+     */
+    public long getForceCount() {
+        synchronized (forceLatch) {
+            return forces;
+        }
+    }
+
+    /**
+     * Returns once the log is durable up to the given LSN, as returned by
+     * logWrite and logDelta. BufferPool calls this before it writes a page
+     * (write-ahead logging).
+     */
+    public void forceTo(long lsn) throws IOException {
+        if (Thread.holdsLock(this)) {
+            // a checkpoint or recovery flushing pages; do not wait on a
+            // group force that needs this monitor
+            synchronized (forceLatch) {
+                if (forced > lsn) {
+                    return;
+                }
+            }
+            force();
+        } else {
+            // the record is durable once the log is, past its start
+            forceGroup(lsn + 1);
+        }
+    }
+
+    /**
+     * Returns whether the specified transaction has log records not yet
+     * followed by its COMMIT or ABORT record.
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
     }
 
     /**
@@ -202,13 +529,16 @@ public class LogFile {
      * @param tid    The transaction performing the write
      * @param before The before image of the page
      * @param after  The after image of the page
+     * @return the LSN of the record
      * @see Page#getBeforeImage
      */
-    public synchronized void logWrite(TransactionId tid, Page before,
+    public synchronized long logWrite(TransactionId tid, Page before,
                                       Page after)
             throws IOException {
         Debug.log("WRITE, offset = " + raf.getFilePointer());
         preAppend();
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), currentOffset);
+        long lsn = currentOffset;
         /* update record conists of
 
            record type
@@ -223,9 +553,56 @@ public class LogFile {
         writePageData(raf, before);
         writePageData(raf, after);
         raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = position();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
+    }
+
+    /**
+     * Write an INSERT, DELETE or FIELD_UPDATE record to disk for a change
+     * the specified tid made to one record. Such a record is a few dozen
+     * bytes where an UPDATE record holds two whole pages.
+     *
+     * @param tid   The transaction making the change
+     * @param delta The change
+     * @return the LSN of the record
+     */
+    public synchronized long logDelta(TransactionId tid, TupleDelta delta)
+            throws IOException {
+        preAppend();
+        tidToFirstLogRecord.putIfAbsent(tid.getId(), currentOffset);
+        long lsn = currentOffset;
+        raf.writeInt(delta.getType());
+        raf.writeLong(tid.getId());
+        delta.write(raf);
+        raf.writeLong(currentOffset);
+        currentOffset = position();
+        return lsn;
+    }
+
+    /**
+     * Write a COMPENSATION record for a change rollback takes back.
+     *
+     * @param change the record of the change
+     * @return the LSN of the record
+     */
+    private synchronized long logCompensation(Record change) throws IOException {
+        preAppend();
+        long lsn = currentOffset;
+        raf.writeInt(COMPENSATION_RECORD);
+        raf.writeLong(change.tid);
+        raf.writeLong(change.offset);
+        if (change.delta != null) {
+            raf.writeInt(change.delta.getType());
+            change.delta.write(raf);
+        } else {
+            raf.writeInt(UPDATE_RECORD);
+            writePageData(raf, change.before);
+        }
+        raf.writeLong(currentOffset);
+        currentOffset = position();
+        return lsn;
     }
 
     void writePageData(RandomAccessFile raf, Page p) throws IOException {
@@ -313,150 +690,121 @@ public class LogFile {
         raf.writeLong(tid.getId());
         raf.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = position();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
     /**
-     * Checkpoint the log and write a checkpoint record.
+     * Checkpoint the log and write a checkpoint record. The checkpoint is
+     * fuzzy: it records the active transactions and the dirty pages at
+     * once, without stopping anybody, and then has the pages dirty since
+     * before the previous checkpoint written out, by the BufferPool's
+     * background writer if it runs. The segments recovery no longer needs
+     * are then deleted.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        BufferPool bp = Database.getBufferPool();
+        long previous;
+        synchronized (this) {
+            previous = recoveryUndecided ? NO_CHECKPOINT_ID : readCheckpointPointer();
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            // taken here, so that no change is logged after the snapshot
+            // and before the record
+            Map<PageId, Long> dirty = bp.getDirtyPageTable();
+            long startCpOffset = currentOffset;
+            raf.writeInt(CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            raf.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                raf.writeLong(e.getKey());
+                raf.writeLong(e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            raf.writeInt(dirty.size());
+            for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+                int[] pageInfo = e.getKey().serialize();
+                raf.writeInt(pageInfo.length);
+                for (int j : pageInfo) {
+                    raf.writeInt(j);
+                }
+                raf.writeLong(e.getValue());
             }
+            raf.writeLong(startCpOffset);
+            currentOffset = position();
+
+            //once the CP is durable, make sure the CP location in the log
+            // file is updated
+            force();
+            writeCheckpointPointer(startCpOffset);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
+        if (previous != NO_CHECKPOINT_ID) {
+            bp.flushOldPages(previous);
+        }
         logTruncate();
     }
 
     /**
      * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * consumption: deletes the segments before the last checkpoint, the
+     * first record of an active transaction and the first change to a page
+     * that is still dirty, whichever comes first. Nothing is copied.
      */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        long cpLoc = readCheckpointPointer();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
-
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        long start = cpLoc;
+        for (long first : tidToFirstLogRecord.values()) {
+            start = Math.min(start, first);
         }
+        for (long recLSN : Database.getBufferPool().getDirtyPageTable().values()) {
+            start = Math.min(start, recLSN);
+        }
+        int keep = segmentOf(start);
+        Debug.log("TRUNCATING LOG; DROPPING SEGMENTS " + firstSegment + " TO " + (keep - 1));
+        while (firstSegment < keep) {
+            segmentFile(firstSegment).delete();
+            firstSegment++;
+        }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    private Record readCheckpoint(long cpLoc) throws IOException {
+        Record cp;
+        try (LogReader reader = new LogReader(cpLoc)) {
+            cp = reader.next();
+        }
+        if (cp == null || cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        }
+        return cp;
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /**
+     * Returns where recovery starts reading: at the first record of the
+     * transactions active at the checkpoint, or of the changes to the
+     * pages dirty then, if earlier than the checkpoint. Truncation may have
+     * deleted the segments with those records since, once the pages were
+     * written out and the transactions were over.
+     */
+    private static long recoveryStart(Record cp) {
+        long start = cp.offset;
+        for (long first : cp.active.values()) {
+            start = Math.min(start, first);
+        }
+        for (long recLSN : cp.dirty.values()) {
+            start = Math.min(start, recLSN);
+        }
+        return start;
     }
 
     /**
@@ -464,18 +812,41 @@ public class LogFile {
      * of pages it updated to their pre-updated state.  To preserve
      * transaction semantics, this should not be called on
      * transactions that have already committed (though this may not
-     * be enforced by this method.)
+     * be enforced by this method.)  Each change taken back gets a
+     * COMPENSATION record; changes that have one already are left be.
      *
      * @param tid The transaction to rollback
      */
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                preAppend();
-                // TODO: some code goes here
+        Long first;
+        long end;
+        synchronized (this) {
+            preAppend();
+            first = tidToFirstLogRecord.get(tid.getId());
+            end = currentOffset;
+        }
+        if (first == null) {
+            return;
+        }
+        // the transaction's records are all before end, and no truncation
+        // drops them while it is active, so they are read without the
+        // monitor
+        List<Record> changes = new ArrayList<>();
+        try (LogReader reader = new LogReader(first)) {
+            Record r;
+            while ((r = reader.next()) != null && r.offset < end) {
+                if (r.tid == tid.getId() && r.isChange()) {
+                    track(changes, r);
+                }
             }
         }
+        Collections.reverse(changes);
+        // pages are read in and written out through the BufferPool's
+        // partitions, while other transactions go on logging
+        for (Record r : changes) {
+            compensate(r);
+        }
     }
 
     /**
@@ -499,24 +870,320 @@ public class LogFile {
      * updates of uncommitted transactions are not installed.
      */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                recoveryUndecided = false;
-                // TODO: some code goes here
+        synchronized (this) {
+            recoveryUndecided = false;
+
+            // analysis: the last checkpoint has the transactions active
+            // and the pages dirty when it was taken
+            long cpLoc = readCheckpointPointer();
+            Record cp = null;
+            long start = offset(firstSegment, 0);
+            if (cpLoc != NO_CHECKPOINT_ID) {
+                cp = readCheckpoint(cpLoc);
+                start = Math.max(start, recoveryStart(cp));
+            }
+
+            // redo: changes after the checkpoint, and earlier changes to
+            // pages dirty since before them, may not be on disk; the
+            // page's LSN tells. Aborted transactions were rolled back
+            // before their ABORT record, and the COMPENSATION records of
+            // the rollback are redone like any change.
+            Map<Long, List<Record>> live = new HashMap<>();
+            long end;
+            try (LogReader reader = new LogReader(start)) {
+                Record r;
+                while ((r = reader.next()) != null) {
+                    switch (r.type) {
+                        case BEGIN_RECORD:
+                            live.putIfAbsent(r.tid, new ArrayList<>());
+                            break;
+                        case COMMIT_RECORD:
+                            live.remove(r.tid);
+                            break;
+                        case ABORT_RECORD:
+                            live.remove(r.tid);
+                            break;
+                        default:
+                            if (r.isChange()) {
+                                track(live.computeIfAbsent(r.tid, x -> new ArrayList<>()), r);
+                                if (mayBeLost(cp, r)) {
+                                    redo(r);
+                                }
+                            }
+                    }
+                }
+                end = reader.end;
             }
+
+            // a record cut short by the crash is dropped
+            if (segmentOf(end) == segment) {
+                raf.setLength(positionOf(end));
+            }
+            raf.seek(raf.length());
+            currentOffset = position();
+            restart();
+            tidToFirstLogRecord.clear();
+
+            // undo: the changes of the transactions that never finished
+            // and were not taken back yet, newest change first. The
+            // losers then get ABORT records so that a later recovery
+            // leaves them be
+            List<Record> losers = new ArrayList<>();
+            live.values().forEach(losers::addAll);
+            losers.sort((a, b) -> Long.compare(b.offset, a.offset));
+            for (Record loser : losers) {
+                compensate(loser);
+            }
+            for (long tid : live.keySet()) {
+                raf.writeInt(ABORT_RECORD);
+                raf.writeLong(tid);
+                raf.writeLong(currentOffset);
+                currentOffset = position();
+            }
+            force();
         }
     }
 
     /**
-     * Print out a human readable represenation of the log
+     * Returns whether a change may be missing from disk: it is past the
+     * checkpoint, or its page was dirty at the checkpoint since no later
+     * than it.
      */
-    public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
+    private static boolean mayBeLost(Record cp, Record change) {
+        if (cp == null || change.offset > cp.offset) {
+            return true;
+        }
+        Long recLSN = cp.dirty.get(change.pageKey());
+        return recLSN != null && change.offset >= recLSN;
+    }
+
+    /**
+     * Adds a change a transaction logged to its changes to take back, or
+     * for a COMPENSATION record, drops the change that was taken back.
+     */
+    private static void track(List<Record> changes, Record r) {
+        if (r.type == COMPENSATION_RECORD) {
+            changes.removeIf(c -> c.offset == r.compensates);
+        } else {
+            changes.add(r);
+        }
+    }
+
+    /** A log record read back for rollback or recovery. */
+    private static class Record {
+        int type;
+        long tid;
+        long offset;
+        /** For a COMPENSATION record: the offset of the change taken back. */
+        long compensates;
+        /** For a COMPENSATION record of an UPDATE: the image put back. */
+        Page before;
+        Page after;
+        TupleDelta delta;
+        /** For a checkpoint: the first record of each active transaction. */
+        Map<Long, Long> active;
+        /** For a checkpoint: the recLSN of each dirty page, by pageKey. */
+        Map<List<Integer>, Long> dirty;
+
+        /** Returns whether this record changed a page. */
+        boolean isChange() {
+            return type == COMPENSATION_RECORD || after != null || delta != null;
+        }
 
-        raf.seek(0);
+        /** Returns the id of the page this record changed. */
+        PageId pageId() {
+            return delta != null ? delta.getRecordId().getPageId() : (after != null ? after : before).getId();
+        }
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        /** Returns the serialized id of the page this record changed. */
+        List<Integer> pageKey() {
+            return key(pageId().serialize());
+        }
+    }
 
+    private static List<Integer> key(int[] pageInfo) {
+        List<Integer> key = new ArrayList<>(pageInfo.length);
+        for (int j : pageInfo) {
+            key.add(j);
+        }
+        return key;
+    }
+
+    /**
+     * Reads the record at the file pointer of a segment, or returns null at
+     * the end of the segment, including at a record cut short by a crash.
+     */
+    private Record readRecord(RandomAccessFile in, int seg) throws IOException {
+        Record r = new Record();
+        r.offset = offset(seg, in.getFilePointer());
+        try {
+            r.type = in.readInt();
+            r.tid = in.readLong();
+            switch (r.type) {
+                case UPDATE_RECORD:
+                    r.before = readPageData(in);
+                    r.after = readPageData(in);
+                    break;
+                case INSERT_RECORD:
+                case DELETE_RECORD:
+                case FIELD_UPDATE_RECORD:
+                    r.delta = TupleDelta.read(r.type, in);
+                    break;
+                case COMPENSATION_RECORD:
+                    r.compensates = in.readLong();
+                    int undone = in.readInt();
+                    if (undone == UPDATE_RECORD) {
+                        r.before = readPageData(in);
+                    } else {
+                        r.delta = TupleDelta.read(undone, in);
+                    }
+                    break;
+                case CHECKPOINT_RECORD:
+                    r.active = new HashMap<>();
+                    int numXactions = in.readInt();
+                    while (numXactions-- > 0) {
+                        long xid = in.readLong();
+                        r.active.put(xid, in.readLong());
+                    }
+                    r.dirty = new HashMap<>();
+                    int numPages = in.readInt();
+                    while (numPages-- > 0) {
+                        int[] pageInfo = new int[in.readInt()];
+                        for (int j = 0; j < pageInfo.length; j++) {
+                            pageInfo[j] = in.readInt();
+                        }
+                        r.dirty.put(key(pageInfo), in.readLong());
+                    }
+                    break;
+            }
+            in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        return r;
+    }
+
+    /**
+     * Reads the records from an offset on, in order, moving on to the next
+     * segment at the end of each.
+     */
+    private class LogReader implements Closeable {
+        private int seg;
+        private RandomAccessFile in;
+        /** The offset past the last complete record read. */
+        long end;
+
+        LogReader(long offset) throws IOException {
+            seg = segmentOf(offset);
+            in = new RandomAccessFile(segmentFile(seg), "r");
+            in.seek(positionOf(offset));
+            end = offset;
+        }
+
+        /** Returns the next record, or null at the end of the log. */
+        Record next() throws IOException {
+            while (true) {
+                Record r = readRecord(in, seg);
+                if (r != null) {
+                    end = offset(seg, in.getFilePointer());
+                    return r;
+                }
+                if (seg >= segment) {
+                    return null;
+                }
+                in.close();
+                seg++;
+                in = new RandomAccessFile(segmentFile(seg), "r");
+                end = offset(seg, 0);
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Repeats a change on the BufferPool's copy of its page, unless the
+     * page's LSN shows that it has the change already. A whole image is
+     * installed as it is.
+     */
+    private void redo(Record r) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        try {
+            if (r.delta != null) {
+                HeapPage page = (HeapPage) bp.getPageForRecovery(r.pageId(), false);
+                if (page.getLSN() >= r.offset) {
+                    return;
+                }
+                if (r.type == COMPENSATION_RECORD) {
+                    r.delta.undo(page);
+                } else {
+                    r.delta.redo(page);
+                }
+                page.setLSN(r.offset);
+                bp.recovered(page, r.offset);
+            } else {
+                Page image = r.type == COMPENSATION_RECORD ? r.before : r.after;
+                image.setLSN(r.offset);
+                bp.recovered(image, r.offset);
+            }
+        } catch (DbException e) {
+            throw new IOException("cannot redo " + r.type + " record at " + r.offset + ": " + e);
+        }
+    }
+
+    /**
+     * Takes a change back from the BufferPool's copy of its page and logs
+     * a COMPENSATION record for it. As for any change, the page is pinned
+     * until its LSN covers the record, and is in the dirty page table
+     * before the record is in the log.
+     */
+    private void compensate(Record r) throws IOException {
+        BufferPool bp = Database.getBufferPool();
+        PageId pid = r.pageId();
+        try {
+            if (r.delta != null) {
+                HeapPage page = (HeapPage) bp.getPageForRecovery(pid, true);
+                try {
+                    r.delta.undo(page);
+                    bp.logging(pid);
+                    long lsn = logCompensation(r);
+                    if (page.getLSN() < lsn) {
+                        page.setLSN(lsn);
+                    }
+                    bp.recovered(page, lsn);
+                } finally {
+                    bp.unpinForRecovery(pid);
+                }
+            } else {
+                bp.logging(pid);
+                long lsn = logCompensation(r);
+                r.before.setLSN(lsn);
+                bp.recovered(r.before, lsn);
+            }
+        } catch (DbException e) {
+            throw new IOException("cannot undo " + r.type + " record at " + r.offset + ": " + e);
+        }
+    }
+
+    /**
+     * Print out a human readable represenation of the log
+     */
+    public synchronized void print() throws IOException {
+        System.out.println("checkpoint record at offset " + readCheckpointPointer());
+        for (int n = firstSegment; n <= segment; n++) {
+            System.out.println("segment " + n + ", offsets from " + offset(n, 0) + ":");
+            try (RandomAccessFile in = new RandomAccessFile(segmentFile(n), "r")) {
+                print(in);
+            }
+        }
+    }
+
+    /**
+     * Print out the records of one segment, by position in it
+     */
+    private void print(RandomAccessFile raf) throws IOException {
         while (true) {
             try {
                 int cpType = raf.readInt();
@@ -550,6 +1217,17 @@ public class LogFile {
                             System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                             System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                         }
+                        int numPages = raf.readInt();
+                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numPages);
+
+                        while (numPages-- > 0) {
+                            int[] pageInfo = new int[raf.readInt()];
+                            for (int j = 0; j < pageInfo.length; j++) {
+                                pageInfo[j] = raf.readInt();
+                            }
+                            long recLSN = raf.readLong();
+                            System.out.println((raf.getFilePointer() - LONG_SIZE) + ": PAGE " + Arrays.toString(pageInfo) + " DIRTY SINCE: " + recLSN);
+                        }
                         System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                         break;
@@ -572,6 +1250,24 @@ public class LogFile {
 
                         System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                        break;
+                    case INSERT_RECORD:
+                    case DELETE_RECORD:
+                    case FIELD_UPDATE_RECORD:
+                        System.out.println(" (" + TupleDelta.read(cpType, raf) + ")");
+                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+                        break;
+                    case COMPENSATION_RECORD:
+                        System.out.println(" (COMPENSATION)");
+                        System.out.println(raf.getFilePointer() + ": TAKES BACK: " + raf.readLong());
+                        int undone = raf.readInt();
+                        if (undone == UPDATE_RECORD) {
+                            Page image = readPageData(raf);
+                            System.out.println(raf.getFilePointer() + ": puts back page number " + image.getId().getPageNumber());
+                        } else {
+                            System.out.println(" (" + TupleDelta.read(undone, raf) + ")");
+                        }
+                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                         break;
                 }
 
@@ -580,13 +1276,11 @@ public class LogFile {
                 break;
             }
         }
-
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
     }
 
     public synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        forced(currentOffset);
     }
 
 }
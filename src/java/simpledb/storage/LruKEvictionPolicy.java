@@ -0,0 +1,99 @@
+package simpledb.storage;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+import java.util.function.IntPredicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the frame
+ * whose K-th most recent access is oldest; frames hit fewer than K times
+ * count as infinitely old and go first, oldest last access first. Pages
+ * touched once by a scan are therefore evicted before pages that are hit
+ * repeatedly, such as index roots.
+ * <p>
+ * Access history is kept per frame and dropped when the page leaves the pool.
+ * Resident frames are kept ordered by backward K-distance, so choosing a
+ * victim only walks past the frames that are not evictable.
+ */
+public class LruKEvictionPolicy implements EvictionPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    /** history[frame * k + i] is the (i+1)-th most recent access; 0 is none. */
+    private final long[] history;
+    private final boolean[] resident;
+    /** Resident frames, oldest K-th access first. */
+    private final TreeSet<Integer> byKthAccess;
+    private long clock;
+
+    public LruKEvictionPolicy(int numFrames) {
+        this(numFrames, DEFAULT_K);
+    }
+
+    public LruKEvictionPolicy(int numFrames, int k) {
+        if (k < 1)
+        {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        this.k = k;
+        history = new long[numFrames * k];
+        resident = new boolean[numFrames];
+        byKthAccess = new TreeSet<>(Comparator.<Integer>comparingLong(frame -> history[frame * k + k - 1])
+                .thenComparingLong(frame -> history[frame * k])
+                .thenComparingInt(frame -> frame));
+        clock = 0;
+    }
+
+    /**
+     * Records an access to a resident frame. The frame's history is its key
+     * in byKthAccess, so it is taken out while the history changes.
+     */
+    private void recordAccess(int frame) {
+        byKthAccess.remove(frame);
+        int base = frame * k;
+        System.arraycopy(history, base, history, base + 1, k - 1);
+        history[base] = ++clock;
+        byKthAccess.add(frame);
+    }
+
+    public synchronized void frameLoaded(int frame, PageId pid) {
+        if (resident[frame])
+        {
+            byKthAccess.remove(frame);
+        }
+        resident[frame] = true;
+        int base = frame * k;
+        for (int i = 0; i < k; ++i)
+        {
+            history[base + i] = 0;
+        }
+        recordAccess(frame);
+    }
+
+    public synchronized void frameAccessed(int frame) {
+        if (resident[frame])
+        {
+            recordAccess(frame);
+        }
+    }
+
+    public synchronized void frameRemoved(int frame) {
+        if (resident[frame])
+        {
+            byKthAccess.remove(frame);
+            resident[frame] = false;
+        }
+    }
+
+    public synchronized int chooseVictim(IntPredicate evictable) {
+        for (int frame : byKthAccess)
+        {
+            if (evictable.test(frame))
+            {
+                return frame;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,134 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A HeapFile that reads its pages from read-only memory mappings of the
+ * file instead of copying them out with read calls. The file is mapped in
+ * segments of up to SEGMENT_BYTES, each holding a whole number of pages,
+ * when a page of the segment is first read, and a segment is mapped again
+ * once the file has grown past its end.
+ * <p>
+ * A page read from here is a view of the mapping until it is first changed,
+ * when it switches to a private copy (see {@link HeapPage}); so changes
+ * reach the file only through writePage, as with a plain HeapFile, and
+ * changes that are rolled back never reach it at all.
+ * <p>
+ * Tables are given this backend by the catalog; see
+ * {@link simpledb.common.Catalog#loadSchema}.
+ */
+public class MappedHeapFile extends HeapFile {
+
+    /** Upper bound on the size of one mapping. */
+    public static final long SEGMENT_BYTES = 64L << 20;
+
+    private final Map<Integer, MappedByteBuffer> segments = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a heap file backed by memory mappings of the specified
+     * file.
+     *
+     * @param f the file that stores the on-disk backing store for this heap
+     *          file.
+     */
+    public MappedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+    }
+
+    // see DbFile.java for javadocs
+    @Override
+    public Page readPage(PageId pid) {
+        HeapPageId id = new HeapPageId(getId(), pid.getPageNumber());
+        try {
+            ByteBuffer view = pageView(pid.getPageNumber());
+            if (view == null) {
+                // past the end of the file the page reads as empty
+                return tracked(new HeapPage(id, HeapPage.createEmptyPageData()));
+            }
+            return tracked(new HeapPage(id, view));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Pages are views of the mapping already; copying them into an off-heap
+     * frame would only read them a second time.
+     */
+    @Override
+    boolean readsIntoFrames() {
+        return false;
+    }
+
+    /**
+     * Maps the pages one by one; pages in the same segment share a mapping,
+     * so there is nothing to coalesce.
+     */
+    @Override
+    public List<Page> readPages(List<PageId> pids) {
+        List<Page> pages = new ArrayList<>(pids.size());
+        for (PageId pid : pids) {
+            pages.add(readPage(pid));
+        }
+        return pages;
+    }
+
+    /**
+     * Returns a read-only view of a page in its segment's mapping, or null if
+     * the page is not wholly inside the file.
+     */
+    private ByteBuffer pageView(int pageNo) throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        int segmentPages = (int) Math.max(1, SEGMENT_BYTES / pageSize);
+        int segment = pageNo / segmentPages;
+        int offset = (pageNo % segmentPages) * pageSize;
+
+        MappedByteBuffer mapping = segments.get(segment);
+        if (mapping == null || mapping.capacity() < offset + pageSize) {
+            mapping = mapSegment(segment, (long) segmentPages * pageSize);
+            if (mapping == null || mapping.capacity() < offset + pageSize) {
+                return null;
+            }
+        }
+        ByteBuffer view = mapping.duplicate();
+        view.position(offset).limit(offset + pageSize);
+        return view.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mappings stay valid, but nothing reads them any more
+        segments.clear();
+        super.close();
+    }
+
+    /**
+     * Maps as much of a segment as the file holds now.
+     *
+     * @return the mapping, or null if the segment starts past the end of the
+     *         file
+     */
+    private synchronized MappedByteBuffer mapSegment(int segment, long segmentBytes) throws IOException {
+        FileChannel channel = rf.getChannel();
+        long start = segment * segmentBytes;
+        long size = Math.min(segmentBytes, channel.size() - start);
+        if (size <= 0) {
+            return null;
+        }
+        MappedByteBuffer mapping = segments.get(segment);
+        // another reader may have mapped it meanwhile
+        if (mapping == null || mapping.capacity() < size) {
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            segments.put(segment, mapping);
+        }
+        return mapping;
+    }
+}
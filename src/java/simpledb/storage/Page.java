@@ -59,4 +59,20 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Returns the log sequence number of the last log record describing a
+     * change to this page, or 0 if none.  The page may only be written to
+     * disk once the log is durable up to that record.  The LSN is kept in
+     * memory only; it is 0 for a page just read from disk.
+     *
+     * @see LogFile#forceTo
+     */
+    long getLSN();
+
+    /**
+     * Records the log sequence number of a log record describing a change
+     * to this page.
+     */
+    void setLSN(long lsn);
 }
@@ -0,0 +1,49 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A PageArena is a block of direct (off-heap) memory carved into page-sized
+ * frames, used by BufferPools in {@link BufferPool.FrameMode#OFF_HEAP} mode.
+ * Pages read into the arena are views over their frame, so the cached page
+ * images are outside the Java heap and do not add to GC work, however large
+ * the pool.
+ * <p>
+ * Direct buffers are limited to 2GB each, so the arena is split into chunks
+ * holding a whole number of frames.
+ */
+class PageArena {
+
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int pageSize;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+
+    /**
+     * @param numFrames number of frames to allocate
+     * @param pageSize  size of each frame in bytes
+     */
+    PageArena(int numFrames, int pageSize) {
+        this.pageSize = pageSize;
+        framesPerChunk = Math.max(1, MAX_CHUNK_BYTES / pageSize);
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; ++i)
+        {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * pageSize);
+        }
+    }
+
+    /**
+     * Returns a buffer covering exactly one frame, positioned at 0.
+     */
+    ByteBuffer frame(int slot) {
+        ByteBuffer chunk = chunks[slot / framesPerChunk].duplicate();
+        int offset = (slot % framesPerChunk) * pageSize;
+        chunk.limit(offset + pageSize);
+        chunk.position(offset);
+        return chunk.slice();
+    }
+}
@@ -0,0 +1,182 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+
+/**
+ * The LSNs of the pages of a HeapFile as they are on disk: for each page,
+ * the LSN of the last log record whose change the page holds, so that
+ * recovery redoes only the changes a page does not have yet.
+ * <p>
+ * The LSNs are kept in a file next to the heap file, named after it with
+ * SUFFIX appended. A page and its LSN cannot be written at once, so each
+ * page has two entries, each an LSN and a checksum of the page image it was
+ * saved for. A write replaces the entry that does not describe the page on
+ * disk before it writes the page, so whether or not a crash comes in
+ * between, the entry whose checksum matches the page on disk has its LSN.
+ * The checksum also covers the id of the log the LSN belongs to, so that
+ * entries left by an earlier log match nothing.
+ *
+ * @see LogFile#recover
+ */
+public class PageLSNMap {
+
+    /** Appended to the heap file's name to name the LSN file. */
+    public static final String SUFFIX = ".lsn";
+    /** An entry: a long LSN and an int checksum. */
+    private static final int ENTRY_BYTES = 12;
+
+    private final File file;
+    /** The pages whose entry for the copy on disk is known. */
+    private final BitSet known = new BitSet();
+    /** Of the known pages, those whose second entry is that one. */
+    private final BitSet second = new BitSet();
+    private RandomAccessFile raf;
+
+    PageLSNMap(File heapFile) {
+        this.file = new File(heapFile.getPath() + SUFFIX);
+    }
+
+    /**
+     * Returns the LSN saved for a page image read from the heap file, or 0
+     * if no entry of the page matches it.
+     *
+     * @param logId the id of the current log, see LogFile#getId
+     */
+    public synchronized long lsnOf(int pageNo, byte[] image, long logId) throws IOException {
+        if (raf == null && !file.exists())
+        {
+            return 0;
+        }
+        open();
+        int sum = checksum(image, logId);
+        long lsn = 0;
+        for (int entry = 0; entry < 2; ++entry)
+        {
+            raf.seek(position(pageNo, entry));
+            long saved = readLong();
+            if (readInt() == sum && saved >= lsn)
+            {
+                lsn = saved;
+                known.set(pageNo);
+                second.set(pageNo, entry == 1);
+            }
+        }
+        return lsn;
+    }
+
+    /**
+     * Saves the LSN of a page image about to be written over the page on
+     * disk, in the entry that does not describe that page, and returns the
+     * entry. Writes of one page must not overlap.
+     *
+     * @param heap the heap file's channel, to read the page on disk from if
+     *             it is not known which entry describes it
+     */
+    synchronized int writing(int pageNo, byte[] image, long lsn, long logId, FileChannel heap) throws IOException {
+        open();
+        int entry = 0;
+        if (known.get(pageNo))
+        {
+            entry = second.get(pageNo) ? 0 : 1;
+        }
+        else
+        {
+            // keep the first entry if it is the one
+            byte[] onDisk = readPage(heap, pageNo, image.length);
+            raf.seek(position(pageNo, 0) + 8);
+            if (onDisk != null && readInt() == checksum(onDisk, logId))
+            {
+                entry = 1;
+            }
+        }
+        raf.seek(position(pageNo, entry));
+        raf.writeLong(lsn);
+        raf.writeInt(checksum(image, logId));
+        return entry;
+    }
+
+    /**
+     * Records that the page the given entry was saved for is on disk.
+     */
+    synchronized void written(int pageNo, int entry) {
+        known.set(pageNo);
+        second.set(pageNo, entry == 1);
+    }
+
+    /**
+     * Clears the entries of a page just appended to the heap file, which
+     * holds no logged change.
+     */
+    synchronized void appended(int pageNo) throws IOException {
+        open();
+        if (raf.length() > position(pageNo, 0))
+        {
+            raf.seek(position(pageNo, 0));
+            raf.write(new byte[2 * ENTRY_BYTES]);
+        }
+        known.set(pageNo);
+        second.clear(pageNo);
+    }
+
+    /**
+     * Closes the LSN file. A later call opens it again.
+     */
+    synchronized void close() throws IOException {
+        if (raf != null)
+        {
+            raf.close();
+            raf = null;
+        }
+    }
+
+    private void open() throws IOException {
+        if (raf == null)
+        {
+            raf = new RandomAccessFile(file, "rw");
+        }
+    }
+
+    /**
+     * Reads a page from the heap file, or returns null if the file ends
+     * before it.
+     */
+    private static byte[] readPage(FileChannel heap, int pageNo, int pageSize) throws IOException {
+        ByteBuffer dst = ByteBuffer.allocate(pageSize);
+        long offset = (long) pageNo * pageSize;
+        while (dst.hasRemaining())
+        {
+            if (heap.read(dst, offset + dst.position()) < 0)
+            {
+                return null;
+            }
+        }
+        return dst.array();
+    }
+
+    private static long position(int pageNo, int entry) {
+        return ((long) pageNo * 2 + entry) * ENTRY_BYTES;
+    }
+
+    /** Reads a long, or 0 past the end of the file. */
+    private long readLong() throws IOException {
+        return raf.getFilePointer() + 8 <= raf.length() ? raf.readLong() : 0;
+    }
+
+    /** Reads an int, or 0 past the end of the file. */
+    private int readInt() throws IOException {
+        return raf.getFilePointer() + 4 <= raf.length() ? raf.readInt() : 0;
+    }
+
+    private static int checksum(byte[] image, long logId) {
+        CRC32C crc = new CRC32C();
+        crc.update(image);
+        crc.update(ByteBuffer.allocate(8).putLong(0, logId));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,246 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The BufferPool's background writer. While it runs, a committing
+ * transaction does not write its dirty pages itself: it hands the writer a
+ * private snapshot of each page's committed contents and marks the cached
+ * page clean, so the page can be evicted at once. The writer trickles the
+ * snapshots to disk in (table, page number) order, a few pages per round,
+ * sweeping upwards from where the last round stopped.
+ * <p>
+ * Until a snapshot is written, it is the newest committed version of its
+ * page, so the BufferPool reads a page from here rather than from disk.
+ * Once more than highWaterMark snapshots are waiting, whoever adds the next
+ * one writes the excess itself.
+ * <p>
+ * A checkpoint hands the writer the pages it wants on disk, rather than
+ * writing them itself. Those are written out of the BufferPool, a round at
+ * a time along with the snapshots.
+ * <p>
+ * All disk writes of the pool go through this object's monitor while the
+ * writer is running, so a snapshot can never overwrite a newer version of
+ * its page.
+ *
+ * @see BufferPool#startPageWriter
+ */
+public class PageWriter implements Runnable {
+
+    /** Orders page ids by table, then page number, so writes are sequential. */
+    static final Comparator<PageId> PAGE_ORDER = Comparator
+            .comparingInt(PageId::getTableId)
+            .thenComparingInt(PageId::getPageNumber)
+            .thenComparing(PageId::serialize, Arrays::compare);
+
+    private final ConcurrentNavigableMap<PageId, Page> pending = new ConcurrentSkipListMap<>(PAGE_ORDER);
+    /** Pages a checkpoint handed over, to be written out of the BufferPool. */
+    private final ConcurrentSkipListSet<PageId> handedOver = new ConcurrentSkipListSet<>(PAGE_ORDER);
+    private final long intervalMillis;
+    private final int pagesPerRound;
+    private final int highWaterMark;
+
+    /** Where the next round starts; the sweep wraps around to the lowest page. */
+    private PageId cursor;
+    private final Object wakeup = new Object();
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * @param intervalMillis time between two rounds of the writer
+     * @param pagesPerRound  at most this many pages are written per round
+     * @param highWaterMark  number of waiting pages beyond which committing
+     *                       transactions write pages themselves
+     */
+    PageWriter(long intervalMillis, int pagesPerRound, int highWaterMark) {
+        if (intervalMillis <= 0 || pagesPerRound <= 0 || highWaterMark < 0)
+        {
+            throw new IllegalArgumentException("bad page writer settings");
+        }
+        this.intervalMillis = intervalMillis;
+        this.pagesPerRound = pagesPerRound;
+        this.highWaterMark = highWaterMark;
+    }
+
+    synchronized void start() {
+        running = true;
+        thread = new Thread(this, "page writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the writer thread and writes out every waiting page.
+     */
+    void stop() throws IOException {
+        running = false;
+        synchronized (wakeup)
+        {
+            wakeup.notifyAll();
+        }
+        // the thread is never interrupted: that would close the channel of
+        // a file it is writing to
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    public void run() {
+        while (running)
+        {
+            synchronized (wakeup)
+            {
+                try
+                {
+                    wakeup.wait(intervalMillis);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+            try
+            {
+                writePages(pagesPerRound);
+                writeHandedOver(pagesPerRound);
+            }
+            catch (IOException e)
+            {
+                // the pages stay pending and are retried next round
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Queues the committed contents of a page. The snapshot must not be
+     * changed afterwards.
+     */
+    void enqueue(Page snapshot) throws IOException {
+        pending.put(snapshot.getId(), snapshot);
+        int excess = pending.size() - highWaterMark;
+        if (excess > 0)
+        {
+            writePages(excess);
+        }
+    }
+
+    /**
+     * Returns a fresh copy of the waiting snapshot of a page, or null if the
+     * copy on disk is current.
+     */
+    Page pendingPage(PageId pid) {
+        Page snapshot = pending.get(pid);
+        if (snapshot == null)
+        {
+            return null;
+        }
+        Page copy = snapshot.getBeforeImage();
+        copy.setLSN(snapshot.getLSN());
+        return copy;
+    }
+
+    /**
+     * Returns whether a snapshot of a page is waiting to be written.
+     */
+    boolean isPending(PageId pid) {
+        return pending.containsKey(pid);
+    }
+
+    /**
+     * Writes a page on behalf of the BufferPool. Any older snapshot of the
+     * page is dropped, since the page is at least as new.
+     */
+    synchronized void writeThrough(Page page) throws IOException {
+        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+        pending.remove(page.getId());
+    }
+
+    /**
+     * Writes up to max waiting pages, continuing the sweep.
+     *
+     * @return the number of pages written
+     */
+    synchronized int writePages(int max) throws IOException {
+        int written = 0;
+        while (written < max)
+        {
+            Map.Entry<PageId, Page> next = cursor == null ? null : pending.higherEntry(cursor);
+            if (next == null)
+            {
+                next = pending.firstEntry();
+                if (next == null)
+                {
+                    break;
+                }
+            }
+            Page snapshot = next.getValue();
+            Database.getCatalog().getDatabaseFile(next.getKey().getTableId()).writePage(snapshot);
+            // a newer snapshot may have replaced this one meanwhile
+            pending.remove(next.getKey(), snapshot);
+            cursor = next.getKey();
+            ++written;
+        }
+        return written;
+    }
+
+    /**
+     * Takes over writing out a page of the BufferPool for a checkpoint.
+     */
+    void handOver(PageId pid) {
+        handedOver.add(pid);
+    }
+
+    /**
+     * Writes up to max pages checkpoints handed over, through the
+     * BufferPool, which logs and forces their changes first as when it
+     * steals them. Called without this monitor, which the BufferPool takes
+     * under a partition latch.
+     *
+     * @return the number of pages taken off the list
+     */
+    int writeHandedOver(int max) throws IOException {
+        int written = 0;
+        PageId pid;
+        while (written < max && (pid = handedOver.pollFirst()) != null)
+        {
+            Database.getBufferPool().writeOldPage(pid);
+            ++written;
+        }
+        return written;
+    }
+
+    void flushAll() throws IOException {
+        writePages(Integer.MAX_VALUE);
+        writeHandedOver(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of committed pages not yet written to disk.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of pages checkpoints handed over that are not
+     * written yet.
+     */
+    public int getHandedOverCount() {
+        return handedOver.size();
+    }
+}
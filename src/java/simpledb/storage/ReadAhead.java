@@ -0,0 +1,210 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-ahead for one sequential scan of a HeapFile. Once the scan has asked
+ * for TRIGGER_PAGES consecutive pages and misses in the BufferPool, the
+ * following pages are read in the background, a window of WINDOW_PAGES pages
+ * at a time with one large read, and the next window is started on the
+ * first miss inside the current one. When the scan then misses on one of
+ * those pages in the BufferPool, the pool takes it from here instead of
+ * reading it from disk.
+ * <p>
+ * Windows are read without locks, so a window is thrown away if the file
+ * has been written to since it was read. A page written since then is
+ * either still cached in the pool or still waiting in the page writer while
+ * its write is in progress, and both take precedence over the window.
+ *
+ * @see BufferPool#getPage(simpledb.transaction.TransactionId, PageId,
+ *      simpledb.common.Permissions, BufferAccessStrategy, ReadAhead)
+ */
+public class ReadAhead {
+
+    /** Consecutive pages a scan asks for before read-ahead starts. */
+    public static final int TRIGGER_PAGES = 2;
+    /** Pages read with each background read. */
+    public static final int WINDOW_PAGES = 32;
+
+    /**
+     * Background reads running at once over all scans; reads beyond that
+     * wait in the queue.
+     */
+    public static final int READ_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final ExecutorService READERS = newReaders();
+
+    private static ExecutorService newReaders() {
+        ThreadPoolExecutor readers = new ThreadPoolExecutor(READ_THREADS, READ_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                });
+        // idle readers exit, so the pool holds no threads between scans
+        readers.allowCoreThreadTimeOut(true);
+        return readers;
+    }
+
+    /** A background read of the pages [first, first + count). */
+    private static class Window {
+        final int first;
+        final int count;
+        final long pageWrites;
+        /** The pages read; a page handed out is set to null. */
+        final Future<List<Page>> data;
+
+        Window(int first, int count, long pageWrites, Future<List<Page>> data) {
+            this.first = first;
+            this.count = count;
+            this.pageWrites = pageWrites;
+            this.data = data;
+        }
+
+        boolean contains(int pageNo) {
+            return pageNo >= first && pageNo < first + count;
+        }
+    }
+
+    private final HeapFile file;
+    private final int numPages;
+    /** Windows in flight or read, lowest first. */
+    private final Deque<Window> windows = new ArrayDeque<>();
+    private int lastPage = -1;
+    private int run;
+    /** First page not covered by a window yet. */
+    private int nextWindow;
+    private long pagesServed;
+
+    /**
+     * @param file     the file being scanned
+     * @param numPages the number of pages the scan covers
+     */
+    public ReadAhead(HeapFile file, int numPages) {
+        this.file = file;
+        this.numPages = numPages;
+    }
+
+    /**
+     * Tells the read-ahead which page the scan asks for next.
+     */
+    void pageRequested(int pageNo) {
+        run = pageNo == lastPage + 1 ? run + 1 : 1;
+        lastPage = pageNo;
+        while (!windows.isEmpty() && windows.peekFirst().first + windows.peekFirst().count <= pageNo)
+        {
+            windows.pollFirst();
+        }
+        if (run < TRIGGER_PAGES)
+        {
+            // not (or no longer) sequential
+            windows.clear();
+            nextWindow = pageNo + 1;
+            return;
+        }
+        nextWindow = Math.max(nextWindow, pageNo + 1);
+    }
+
+    /**
+     * Tells the read-ahead that the page last requested was not cached,
+     * which starts a background read if the scan is sequential. Scans that
+     * find their pages in the BufferPool never read ahead.
+     */
+    void pageMissed() {
+        // keep one window ahead of the one the scan is in
+        if (run >= TRIGGER_PAGES && windows.size() < 2 && nextWindow < numPages)
+        {
+            int first = nextWindow;
+            int count = Math.min(WINDOW_PAGES, numPages - first);
+            long pageWrites = file.getPageWrites();
+            windows.addLast(new Window(first, count, pageWrites,
+                    READERS.submit(() -> file.readPages(pageIds(first, count)))));
+            nextWindow = first + count;
+        }
+    }
+
+    private List<PageId> pageIds(int first, int count) {
+        List<PageId> pids = new ArrayList<>(count);
+        for (int i = first; i < first + count; ++i)
+        {
+            pids.add(new HeapPageId(file.getId(), i));
+        }
+        return pids;
+    }
+
+    /**
+     * Returns the page from a window, waiting for its read if needed, or
+     * null if no valid window holds it.
+     */
+    HeapPage take(PageId pid) {
+        if (pid.getTableId() != file.getId())
+        {
+            return null;
+        }
+        for (Window w : windows)
+        {
+            if (!w.contains(pid.getPageNumber()))
+            {
+                continue;
+            }
+            List<Page> pages;
+            try
+            {
+                pages = w.data.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            catch (ExecutionException e)
+            {
+                return null;
+            }
+            if (file.getPageWrites() != w.pageWrites)
+            {
+                return null;
+            }
+            // the page may be changed once it is cached, so it is only
+            // handed out once
+            Page page = pages.set(pid.getPageNumber() - w.first, null);
+            if (page != null)
+            {
+                ++pagesServed;
+            }
+            return (HeapPage) page;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of pages the BufferPool took from this read-ahead
+     * instead of reading them from disk.
+     */
+    public long getPagesServed() {
+        return pagesServed;
+    }
+
+    /**
+     * Forgets all windows, e.g. when the scan is rewound or closed.
+     */
+    void reset() {
+        for (Window w : windows)
+        {
+            w.data.cancel(false);
+        }
+        windows.clear();
+        lastPage = -1;
+        run = 0;
+        nextWindow = 0;
+    }
+}
@@ -0,0 +1,216 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * A change to one record of a heap page, logged in place of the page's
+ * before and after images: a tuple inserted into a slot, a tuple deleted
+ * from a slot, or one field of a tuple updated. Each is keyed by the
+ * RecordId it changed and carries what is needed to redo and to undo it.
+ * <p>
+ * Redo and undo install the state the change leaves or found, whatever the
+ * slot holds now. Recovery only redoes a change on a page whose LSN is
+ * older than it, so a page never gets a change it already has or a change
+ * whose record a later change on it deleted.
+ *
+ * @see LogFile#logDelta
+ */
+public class TupleDelta {
+
+    /** One of LogFile's INSERT_RECORD, DELETE_RECORD and FIELD_UPDATE_RECORD. */
+    private final int type;
+    private final RecordId rid;
+    /** The inserted or deleted tuple; null for a field update. */
+    private final Tuple tuple;
+    private final int field;
+    private final Field before;
+    private final Field after;
+
+    private TupleDelta(int type, RecordId rid, Tuple tuple, int field, Field before, Field after) {
+        this.type = type;
+        this.rid = rid;
+        this.tuple = tuple;
+        this.field = field;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Returns the insert of a tuple, which must have the RecordId it was
+     * inserted at. The tuple must not change afterwards.
+     */
+    public static TupleDelta insert(Tuple t) {
+        return new TupleDelta(LogFile.INSERT_RECORD, t.getRecordId(), t, -1, null, null);
+    }
+
+    /**
+     * Returns the delete of a tuple, which must have the RecordId it was
+     * deleted from. The tuple must not change afterwards.
+     */
+    public static TupleDelta delete(Tuple t) {
+        return new TupleDelta(LogFile.DELETE_RECORD, t.getRecordId(), t, -1, null, null);
+    }
+
+    /**
+     * Returns the update of one field of a record from one value to another.
+     */
+    public static TupleDelta update(RecordId rid, int field, Field before, Field after) {
+        return new TupleDelta(LogFile.FIELD_UPDATE_RECORD, rid, null, field, before, after);
+    }
+
+    /** Returns the log record type of this change. */
+    public int getType() {
+        return type;
+    }
+
+    public RecordId getRecordId() {
+        return rid;
+    }
+
+    /**
+     * Applies this change to a page, which must be the page of its record.
+     */
+    public void redo(HeapPage page) throws DbException {
+        switch (type) {
+            case LogFile.INSERT_RECORD:
+                install(page, tuple);
+                break;
+            case LogFile.DELETE_RECORD:
+                install(page, null);
+                break;
+            default:
+                page.updateField(rid.getTupleNumber(), field, after);
+        }
+    }
+
+    /**
+     * Takes this change back from a page, which must be the page of its
+     * record.
+     */
+    public void undo(HeapPage page) throws DbException {
+        switch (type) {
+            case LogFile.INSERT_RECORD:
+                install(page, null);
+                break;
+            case LogFile.DELETE_RECORD:
+                install(page, tuple);
+                break;
+            default:
+                page.updateField(rid.getTupleNumber(), field, before);
+        }
+    }
+
+    /**
+     * Leaves the record's slot holding the given tuple, or empty for null.
+     */
+    private void install(HeapPage page, Tuple t) throws DbException {
+        int slot = rid.getTupleNumber();
+        if (page.isSlotUsed(slot)) {
+            Tuple old = new Tuple(page.td);
+            old.setRecordId(rid);
+            page.deleteTuple(old);
+        }
+        if (t != null) {
+            Tuple copy = new Tuple(t.getTupleDesc());
+            for (int i = 0; i < t.getTupleDesc().numFields(); ++i) {
+                copy.setField(i, t.getField(i));
+            }
+            page.insertTuple(copy, slot);
+        }
+    }
+
+    /*
+    A delta is written as
+
+       table id, page number and slot of the record
+       for an insert or delete: the length and bytes of the tuple
+       for a field update: the field number, and the length and bytes of
+           the before value and of the after value
+    */
+
+    /**
+     * Writes this change, without its type, as part of a log record.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(rid.getPageId().getTableId());
+        out.writeInt(rid.getPageId().getPageNumber());
+        out.writeInt(rid.getTupleNumber());
+        if (tuple != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bytes);
+            for (int i = 0; i < tuple.getTupleDesc().numFields(); ++i) {
+                tuple.getField(i).serialize(dos);
+            }
+            writeBytes(out, bytes.toByteArray());
+        } else {
+            out.writeInt(field);
+            writeBytes(out, serialize(before));
+            writeBytes(out, serialize(after));
+        }
+    }
+
+    /**
+     * Reads a change of the given log record type written by write. The
+     * record's table must be in the catalog.
+     */
+    static TupleDelta read(int type, DataInput in) throws IOException {
+        int tableId = in.readInt();
+        int pageNo = in.readInt();
+        RecordId rid = new RecordId(new HeapPageId(tableId, pageNo), in.readInt());
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        try {
+            if (type != LogFile.FIELD_UPDATE_RECORD) {
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(readBytes(in)));
+                Tuple t = new Tuple(td);
+                for (int i = 0; i < td.numFields(); ++i) {
+                    t.setField(i, td.getFieldType(i).parse(dis));
+                }
+                t.setRecordId(rid);
+                return new TupleDelta(type, rid, t, -1, null, null);
+            }
+            int field = in.readInt();
+            Type fieldType = td.getFieldType(field);
+            Field before = fieldType.parse(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
+            Field after = fieldType.parse(new DataInputStream(new ByteArrayInputStream(readBytes(in))));
+            return new TupleDelta(type, rid, null, field, before, after);
+        } catch (ParseException e) {
+            throw new IOException("bad tuple delta for table " + tableId + " page " + pageNo + ": " + e);
+        }
+    }
+
+    private static byte[] serialize(Field f) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        f.serialize(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return b;
+    }
+
+    @Override
+    public String toString() {
+        String record = "table " + rid.getPageId().getTableId() + " page " + rid.getPageId().getPageNumber()
+                + " slot " + rid.getTupleNumber();
+        switch (type) {
+            case LogFile.INSERT_RECORD:
+                return "INSERT " + record + ": " + tuple;
+            case LogFile.DELETE_RECORD:
+                return "DELETE " + record + ": " + tuple;
+            default:
+                return "UPDATE " + record + " field " + field + ": " + before + " -> " + after;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Simplified 2Q replacement (Johnson and Shasha). Pages enter a FIFO queue
+ * (A1in) on first load. Pages evicted from A1in are remembered by id in a
+ * ghost queue (A1out); if one of them is read in again it goes straight to
+ * the LRU queue of hot pages (Am). A1in is kept to about a quarter of the
+ * frames, so a long scan only ever cycles through that part of the pool.
+ */
+public class TwoQueueEvictionPolicy implements EvictionPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+    private final LinkedHashSet<Integer> a1in;
+    private final LinkedHashSet<Integer> am;
+    private final LinkedHashSet<PageId> a1out;
+    private final PageId[] framePids;
+
+    public TwoQueueEvictionPolicy(int numFrames) {
+        maxIn = Math.max(1, numFrames / 4);
+        maxOut = Math.max(1, numFrames / 2);
+        a1in = new LinkedHashSet<>();
+        am = new LinkedHashSet<>();
+        a1out = new LinkedHashSet<>();
+        framePids = new PageId[numFrames];
+    }
+
+    public synchronized void frameLoaded(int frame, PageId pid) {
+        framePids[frame] = pid;
+        if (a1out.remove(pid))
+        {
+            am.add(frame);
+        }
+        else
+        {
+            a1in.add(frame);
+        }
+    }
+
+    public synchronized void frameAccessed(int frame) {
+        // hits in A1in are deliberately ignored: they are usually correlated
+        // references from the same scan or query
+        if (am.remove(frame))
+        {
+            am.add(frame);
+        }
+    }
+
+    public synchronized void frameRemoved(int frame) {
+        a1in.remove(frame);
+        am.remove(frame);
+        framePids[frame] = null;
+    }
+
+    public synchronized int chooseVictim(IntPredicate evictable) {
+        int victim;
+        if (a1in.size() > maxIn || am.isEmpty())
+        {
+            victim = firstEvictable(a1in, evictable);
+            if (victim != -1)
+            {
+                remember(framePids[victim]);
+                return victim;
+            }
+            return firstEvictable(am, evictable);
+        }
+        victim = firstEvictable(am, evictable);
+        if (victim != -1)
+        {
+            return victim;
+        }
+        victim = firstEvictable(a1in, evictable);
+        if (victim != -1)
+        {
+            remember(framePids[victim]);
+        }
+        return victim;
+    }
+
+    private int firstEvictable(LinkedHashSet<Integer> queue, IntPredicate evictable) {
+        for (int frame : queue)
+        {
+            if (evictable.test(frame))
+            {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > maxOut)
+        {
+            Iterator<PageId> oldest = a1out.iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package simpledb.storage;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The committed versions of heap pages that snapshot readers may still
+ * need. Every commit gets a commit number; a snapshot reads the database as
+ * of the last commit published when it began.
+ * <p>
+ * When a transaction commits, the image each of its pages had before the
+ * transaction changed it is kept as a version valid until the new commit
+ * number, before the page itself changes. A snapshot that began earlier
+ * reads, for each page, the oldest version valid past its start, or the
+ * page's current committed image if there is none. Commits are published in
+ * commit number order, and only once all their pages have changed, so a
+ * snapshot sees either all of a commit or none of it.
+ * <p>
+ * A version is dropped once every running snapshot began after it stopped
+ * being valid; with no snapshot running, versions are dropped as soon as
+ * their commit is published.
+ *
+ * @see BufferPool#beginSnapshot
+ */
+public class VersionStore {
+
+    /** A page image and the commit that replaced it. */
+    private static class Version {
+        final long until;
+        final byte[] data;
+
+        Version(long until, byte[] data)
+        {
+            this.until = until;
+            this.data = data;
+        }
+    }
+
+    /** Guards the commit numbers and changes to snapshots. */
+    private final Object latch = new Object();
+    /** Every commit up to this one is visible to new snapshots. */
+    private long published;
+    /** The last commit number handed out. */
+    private long lastCommit;
+    /** The commit each running snapshot reads as of. */
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    /** Each page's versions, oldest first; a deque is guarded by itself. */
+    private final Map<PageId, Deque<Version>> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Starts a snapshot for a transaction as of the last published commit.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        synchronized (latch)
+        {
+            snapshots.put(tid, published);
+        }
+    }
+
+    /**
+     * Returns the commit a transaction's snapshot reads as of, or null if
+     * the transaction is not reading a snapshot.
+     */
+    public Long snapshotOf(TransactionId tid) {
+        return snapshots.isEmpty() ? null : snapshots.get(tid);
+    }
+
+    /**
+     * Ends a transaction's snapshot and drops the versions only it needed.
+     *
+     * @return whether the transaction was reading a snapshot
+     */
+    public boolean endSnapshot(TransactionId tid) {
+        synchronized (latch)
+        {
+            if (snapshots.remove(tid) == null)
+            {
+                return false;
+            }
+        }
+        prune(versions.keySet());
+        return true;
+    }
+
+    /**
+     * Starts a commit: numbers it and keeps the committed images of the
+     * pages it is about to change. The pages must not change before this.
+     *
+     * @param images the committed image of each page
+     * @return the commit number, to be passed to endCommit
+     */
+    long beginCommit(Map<PageId, byte[]> images) {
+        synchronized (latch)
+        {
+            long commit = ++lastCommit;
+            images.forEach((pid, data) -> {
+                Deque<Version> chain = versions.computeIfAbsent(pid, p -> new ArrayDeque<>());
+                synchronized (chain)
+                {
+                    chain.addLast(new Version(commit, data));
+                }
+            });
+            return commit;
+        }
+    }
+
+    /**
+     * Publishes a commit once its pages have changed, after every earlier
+     * commit.
+     */
+    void endCommit(long commit, Collection<PageId> pids) {
+        synchronized (latch)
+        {
+            boolean interrupted = false;
+            while (published != commit - 1)
+            {
+                try
+                {
+                    latch.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            published = commit;
+            latch.notifyAll();
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        prune(pids);
+    }
+
+    /**
+     * Returns the image of a page a snapshot reads.
+     *
+     * @param snapshot the commit the snapshot reads as of
+     * @param current  the page's committed image, taken before this call
+     */
+    byte[] read(PageId pid, long snapshot, byte[] current) {
+        Deque<Version> chain = versions.get(pid);
+        if (chain != null)
+        {
+            synchronized (chain)
+            {
+                for (Version v : chain)
+                {
+                    if (v.until > snapshot)
+                    {
+                        return v.data;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Drops the versions of the given pages that no snapshot can read any
+     * more.
+     */
+    private void prune(Collection<PageId> pids) {
+        long horizon;
+        synchronized (latch)
+        {
+            horizon = published;
+            for (long snapshot : snapshots.values())
+            {
+                horizon = Math.min(horizon, snapshot);
+            }
+            // a snapshot reads the oldest version valid past its start, so
+            // versions valid only up to the oldest start are unreachable
+            for (PageId pid : new ArrayList<>(pids))
+            {
+                Deque<Version> chain = versions.get(pid);
+                if (chain == null)
+                {
+                    continue;
+                }
+                synchronized (chain)
+                {
+                    while (!chain.isEmpty() && chain.peekFirst().until <= horizon)
+                    {
+                        chain.pollFirst();
+                    }
+                    if (chain.isEmpty())
+                    {
+                        versions.remove(pid, chain);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of page versions kept.
+     */
+    public int getVersionCount() {
+        int n = 0;
+        for (Deque<Version> chain : versions.values())
+        {
+            synchronized (chain)
+            {
+                n += chain.size();
+            }
+        }
+        return n;
+    }
+}
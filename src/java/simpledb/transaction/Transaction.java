@@ -12,6 +12,7 @@ import java.io.IOException;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private boolean readOnly = false;
 
     public Transaction() {
         tid = new TransactionId();
@@ -22,6 +23,9 @@ public class Transaction {
      */
     public void start() {
         started = true;
+        if (readOnly) {
+            Database.getBufferPool().beginSnapshot(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -33,6 +37,37 @@ public class Transaction {
         return tid;
     }
 
+    /**
+     * Makes this a read-only transaction, which reads a snapshot of the
+     * committed data as of its start without taking locks. Call before
+     * start.
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Bounds how long each lock request of this transaction waits; a
+     * request that waits longer aborts the transaction with a
+     * TransactionAbortedException.
+     *
+     * @param millis the longest wait, or 0 to wait as long as it takes
+     */
+    public void setLockTimeout(long millis) {
+        Database.getBufferPool().lockManager.setLockTimeout(tid, millis);
+    }
+
+    /**
+     * Bounds how many pages, tables and records this transaction holds
+     * locks on; asking for one more aborts the transaction with a
+     * TransactionAbortedException.
+     *
+     * @param max the most locks, or Integer.MAX_VALUE for no bound
+     */
+    public void setMaxLocks(int max) {
+        Database.getBufferPool().lockManager.setMaxLocks(tid, max);
+    }
+
     /**
      * Finish the transaction
      */
@@ -53,18 +88,9 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write abort log record and rollback transaction
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            }
-
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            // write commit log record
-            if (!abort) {
-                Database.getLogFile().logCommit(tid);
-            }
+            // writes the commit or abort log record, rolling back on abort,
+            // and releases locks
+            Database.getBufferPool().transactionComplete(tid, !abort);
 
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
@@ -89,6 +89,29 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 		assertFalse(page.isSlotUsed(20));
 	}
 
+	/**
+	 * Unit test for BTreeFile.readPages()
+	 */
+	@Test
+	public void readPages() {
+		BTreePageId rootPtrPid = new BTreePageId(f.getId(), 0, BTreePageId.ROOT_PTR);
+		BTreePageId leafPid = new BTreePageId(f.getId(), 1, BTreePageId.LEAF);
+		List<PageId> pids = Arrays.asList(leafPid, rootPtrPid, leafPid);
+
+		List<Page> pages = f.readPages(pids);
+		assertEquals(3, pages.size());
+		for (int i = 0; i < pids.size(); ++i) {
+			assertEquals(pids.get(i), pages.get(i).getId());
+			assertArrayEquals(f.readPage(pids.get(i)).getPageData(), pages.get(i).getPageData());
+		}
+
+		try {
+			f.readPages(Collections.singletonList(new BTreePageId(f.getId(), 2, BTreePageId.LEAF)));
+			fail("expected exception");
+		} catch (IllegalArgumentException ignored) {
+		}
+	}
+
 	@Test
 	public void testIteratorBasic() throws Exception {
 		BTreeFile smallFile = BTreeUtility.createRandomBTreeFile(2, 3, null,
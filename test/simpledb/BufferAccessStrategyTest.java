@@ -0,0 +1,112 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BufferAccessStrategyTest extends SimpleDbTestBase {
+
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int POOL_PAGES = 12;
+
+    private HeapFile hot;
+    private HeapFile big;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hot = SystemTestUtil.createRandomHeapFile(2, 4 * TUPLES_PER_PAGE, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, 40 * TUPLES_PER_PAGE, null, null);
+        Database.resetBufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void touchHotPages() throws Exception {
+        for (int i = 0; i < hot.numPages(); ++i)
+            Database.getBufferPool().getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Scans that fit in the pool use the whole pool.
+     */
+    @Test public void smallScanHasNoStrategy() {
+        assertNull(Database.getBufferPool().getBulkReadStrategy(POOL_PAGES));
+        assertNotNull(Database.getBufferPool().getBulkReadStrategy(POOL_PAGES + 1));
+    }
+
+    /**
+     * A full scan of a big table must not push the hot pages out of the pool.
+     */
+    @Test public void scanKeepsHotPages() throws Exception {
+        scanKeepsHotPages(Database.getBufferPool());
+    }
+
+    /**
+     * With a partitioned pool, a page the scan misses on replaces the page
+     * it read into the same partition, so a partition with room for just
+     * one scan page keeps its hot pages even when the scan misses on two
+     * pages of that partition in a row.
+     */
+    @Test public void ringIsPerPartition() throws Exception {
+        BufferPool bp = Database.resetBufferPool(new BufferPool(16, 2, ClockEvictionPolicy::new));
+        // seven hot pages in each partition leave one frame free in both
+        HeapFile hot = SystemTestUtil.createRandomHeapFile(2, 14 * TUPLES_PER_PAGE, null, null);
+        for (int i = 0; i < hot.numPages(); ++i)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+
+        BufferAccessStrategy strategy = bp.getBulkReadStrategy(big.numPages());
+        assertEquals(2, strategy.getRingSize());
+        // pages i and i + 2 go to the same partition
+        for (int i = 0; i + 3 < big.numPages(); i += 4) {
+            for (int pg : new int[]{i, i + 2, i + 1, i + 3})
+                bp.getPage(tid, new HeapPageId(big.getId(), pg), Permissions.READ_ONLY, strategy);
+        }
+
+        long misses = bp.getMissCount();
+        for (int i = 0; i < hot.numPages(); ++i)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        assertEquals(misses, bp.getMissCount());
+    }
+
+    private void scanKeepsHotPages(BufferPool bp) throws Exception {
+        touchHotPages();
+
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(40 * TUPLES_PER_PAGE, count);
+
+        long hits = bp.getHitCount();
+        long misses = bp.getMissCount();
+        touchHotPages();
+        assertEquals(hits + hot.numPages(), bp.getHitCount());
+        assertEquals(misses, bp.getMissCount());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferAccessStrategyTest.class);
+    }
+}
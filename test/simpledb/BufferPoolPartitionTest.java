@@ -0,0 +1,168 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolPartitionTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 20;
+
+    private HeapFile table;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * 504, null, null);
+    }
+
+    /**
+     * Small pools keep a single partition; explicit counts are checked.
+     */
+    @Test public void partitionCount() {
+        assertEquals(1, new BufferPool(BufferPool.DEFAULT_PAGES).getNumPartitions());
+        assertEquals(4, new BufferPool(16, 4, ClockEvictionPolicy::new).getNumPartitions());
+        try {
+            new BufferPool(4, 5, ClockEvictionPolicy::new);
+            fail("more partitions than pages should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Threads reading the same pages through different partitions must all
+     * see one copy of each page.
+     */
+    @Test public void concurrentReadersShareFrames() throws Exception {
+        BufferPool bp = new BufferPool(200, 4, ClockEvictionPolicy::new);
+        Map<PageId, Page> seen = new ConcurrentHashMap<>();
+        List<Throwable> errors = new ArrayList<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            threads.add(new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int i = 0; i < TABLE_PAGES; ++i) {
+                        HeapPageId pid = new HeapPageId(table.getId(), i);
+                        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        Page first = seen.putIfAbsent(pid, p);
+                        if (first != null && first != p)
+                            throw new AssertionError("two copies of page " + i);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                } finally {
+                    bp.transactionComplete(tid);
+                }
+            }));
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(TABLE_PAGES, seen.size());
+        assertEquals(TABLE_PAGES, bp.getMissCount());
+    }
+
+    /** A heap file whose reads of page 0 wait until they are let through. */
+    private static class SlowHeapFile extends HeapFile {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicInteger firstPageReads = new AtomicInteger();
+
+        SlowHeapFile(HeapFile f) {
+            super(f.getFile(), f.getTupleDesc());
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            if (pid.getPageNumber() == 0) {
+                firstPageReads.incrementAndGet();
+                entered.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    /** Fetches a page on another thread; the latch opens once it is returned. */
+    private static CountDownLatch fetch(BufferPool bp, PageId pid, AtomicReference<Page> into) {
+        CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            TransactionId tid = new TransactionId();
+            try {
+                into.set(bp.getPage(tid, pid, Permissions.READ_ONLY));
+                done.countDown();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return done;
+    }
+
+    /**
+     * A slow read leaves its partition free for other misses, and a second
+     * request for the page waits for the read in progress instead of
+     * reading the page again.
+     */
+    @Test public void readOutsideLatch() throws Exception {
+        SlowHeapFile slow = new SlowHeapFile(table);
+        Database.getCatalog().addTable(slow, "slow");
+        BufferPool bp = new BufferPool(8, 1, ClockEvictionPolicy::new);
+        HeapPageId first = new HeapPageId(slow.getId(), 0);
+
+        AtomicReference<Page> a = new AtomicReference<>();
+        CountDownLatch aDone = fetch(bp, first, a);
+        assertTrue(slow.entered.await(5, TimeUnit.SECONDS));
+
+        AtomicReference<Page> other = new AtomicReference<>();
+        assertTrue(fetch(bp, new HeapPageId(slow.getId(), 1), other).await(5, TimeUnit.SECONDS));
+
+        AtomicReference<Page> b = new AtomicReference<>();
+        CountDownLatch bDone = fetch(bp, first, b);
+        assertFalse(bDone.await(200, TimeUnit.MILLISECONDS));
+
+        slow.proceed.countDown();
+        assertTrue(aDone.await(5, TimeUnit.SECONDS));
+        assertTrue(bDone.await(5, TimeUnit.SECONDS));
+        assertSame(a.get(), b.get());
+        assertEquals(1, slow.firstPageReads.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPartitionTest.class);
+    }
+}
@@ -0,0 +1,190 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CheckpointTest extends SimpleDbTestBase {
+
+    private static final int MAGIC = -7;
+    private static final long SEGMENT_BYTES = 256;
+
+    private File file;
+    private HeapFile hf;
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        file = hf.getFile();
+        log = Database.getLogFile();
+        log.setSegmentBytes(SEGMENT_BYTES);
+    }
+
+    private int count() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            if (it.next().getField(0).equals(new IntField(MAGIC))) {
+                ++n;
+            }
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /** Inserts rows, one transaction each, and commits them. */
+    private void commit(int rows) throws Exception {
+        for (int i = 0; i < rows; ++i) {
+            TransactionId tid = new TransactionId();
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(MAGIC, 2));
+            Database.getBufferPool().transactionComplete(tid);
+        }
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        log = Database.getLogFile();
+        log.recover();
+    }
+
+    /**
+     * A checkpoint runs while another thread holds the BufferPool monitor.
+     */
+    @Test public void doesNotStopTheWorld() throws Exception {
+        commit(5);
+        BufferPool bp = Database.getBufferPool();
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (bp) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        holder.setDaemon(true);
+        holder.start();
+        assertTrue(held.await(1, TimeUnit.SECONDS));
+
+        CountDownLatch done = new CountDownLatch(1);
+        Thread checkpointer = new Thread(() -> {
+            try {
+                log.logCheckpoint();
+                log.logCheckpoint();
+                done.countDown();
+            } catch (Exception e) {
+                // the latch stays closed
+            }
+        });
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+        try {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Once the pages dirty at a checkpoint are written out, the next
+     * checkpoint deletes the segments before it.
+     */
+    @Test public void segmentsReclaimed() throws Exception {
+        commit(50);
+        int segments = log.getSegmentCount();
+        assertTrue(segments > 10);
+
+        log.logCheckpoint();
+        log.logCheckpoint();
+        assertTrue(log.getSegmentCount() < 3);
+        assertFalse(new File("log.1").exists());
+        assertEquals(50, count());
+    }
+
+    /**
+     * With the background writer running, a checkpoint hands it the old
+     * dirty pages instead of writing them, and the log is reclaimed once
+     * the writer has.
+     */
+    @Test public void handsPagesToWriter() throws Exception {
+        commit(50);
+        log.logCheckpoint();
+        BufferPool bp = Database.getBufferPool();
+        long length = file.length();
+        long modified = file.lastModified();
+        bp.startPageWriter(60000, 1, 1000);
+        try {
+            log.logCheckpoint();
+            assertEquals(1, bp.getPageWriter().getHandedOverCount());
+            assertEquals(length, file.length());
+            assertEquals(modified, file.lastModified());
+            assertTrue(log.getSegmentCount() > 10);
+        } finally {
+            bp.stopPageWriter();
+        }
+        log.logTruncate();
+        assertTrue(log.getSegmentCount() < 3);
+        assertEquals(50, count());
+
+        crash();
+        assertEquals(50, count());
+    }
+
+    /**
+     * Recovery redoes committed changes still dirty at the checkpoint and
+     * takes back those of transactions that never finished, also once old
+     * segments are gone.
+     */
+    @Test public void recoverAfterCheckpoints() throws Exception {
+        commit(10);
+        log.logCheckpoint();
+        commit(10);
+        log.logCheckpoint();
+        commit(10);
+        TransactionId loser = new TransactionId();
+        Database.getBufferPool().insertTuple(loser, hf.getId(), Utility.getHeapTuple(MAGIC, 2));
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        assertEquals(30, count());
+
+        commit(5);
+        log.logCheckpoint();
+        log.logCheckpoint();
+        crash();
+        assertEquals(35, count());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static void load(EvictionPolicy policy, int numFrames) {
+        for (int i = 0; i < numFrames; ++i)
+            policy.frameLoaded(i, new HeapPageId(1, i));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: a page hit since the last sweep gets
+     * a second chance.
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockEvictionPolicy(3);
+        load(policy, 3);
+        // every frame was just loaded, so the first sweep only clears bits
+        assertEquals(0, policy.chooseVictim(f -> true));
+        policy.frameRemoved(0);
+
+        policy.frameAccessed(1);
+        assertEquals(2, policy.chooseVictim(f -> true));
+    }
+
+    /**
+     * Unit test for ClockEvictionPolicy: a pool where every page is hot
+     * still gives each one its second chance before evicting it.
+     */
+    @Test public void clockAllHot() {
+        int numFrames = 1000;
+        EvictionPolicy policy = new ClockEvictionPolicy(numFrames);
+        load(policy, numFrames);
+        policy.frameAccessed(0);
+        // the hand clears every bit in one revolution and comes back to 0
+        assertEquals(0, policy.chooseVictim(f -> true));
+        policy.frameRemoved(0);
+        policy.frameAccessed(2);
+        assertEquals(1, policy.chooseVictim(f -> true));
+        assertEquals(3, policy.chooseVictim(f -> f != 1));
+    }
+
+    /**
+     * Unit test for LruKEvictionPolicy: pages hit fewer than K times go first.
+     */
+    @Test public void lruKPrefersColdPages() {
+        EvictionPolicy policy = new LruKEvictionPolicy(3);
+        load(policy, 3);
+        policy.frameAccessed(0);
+        policy.frameAccessed(2);
+        assertEquals(1, policy.chooseVictim(f -> true));
+
+        // among pages hit twice, the older second-to-last access loses
+        assertEquals(0, policy.chooseVictim(f -> f != 1));
+
+        // a reloaded frame starts over with no history
+        policy.frameRemoved(1);
+        policy.frameLoaded(1, new HeapPageId(1, 7));
+        policy.frameAccessed(0);
+        assertEquals(1, policy.chooseVictim(f -> true));
+        assertEquals(2, policy.chooseVictim(f -> f != 1));
+    }
+
+    /**
+     * Unit test for TwoQueueEvictionPolicy: a page evicted from the FIFO queue
+     * and read again is promoted, and survives a scan.
+     */
+    @Test public void twoQueuePromotesRereadPages() {
+        EvictionPolicy policy = new TwoQueueEvictionPolicy(8);
+        load(policy, 4);
+        assertEquals(0, policy.chooseVictim(f -> true));
+        policy.frameRemoved(0);
+        policy.frameLoaded(0, new HeapPageId(1, 0));
+
+        // scan through the rest of the pool; frame 0 is never chosen
+        for (int pg = 100; pg < 120; ++pg) {
+            int victim = policy.chooseVictim(f -> true);
+            assertNotEquals(0, victim);
+            policy.frameRemoved(victim);
+            policy.frameLoaded(victim, new HeapPageId(1, pg));
+        }
+    }
+
+    /**
+     * Policies must honour the evictable filter.
+     */
+    @Test public void noEvictableFrame() {
+        EvictionPolicy[] policies = {
+            new ClockEvictionPolicy(4), new LruKEvictionPolicy(4), new TwoQueueEvictionPolicy(4)
+        };
+        for (EvictionPolicy policy : policies) {
+            load(policy, 4);
+            assertEquals(-1, policy.chooseVictim(f -> false));
+            assertEquals(3, policy.chooseVictim(f -> f == 3));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
@@ -0,0 +1,113 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    private static final int FULL_PAGES = 3;
+
+    private HeapFile file;
+    private TransactionId tid;
+
+    /**
+     * Writes FULL_PAGES full pages and one empty page, then opens the file
+     * again, so that its free-space map is read back from disk.
+     */
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        HeapFile created = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        byte[] full = new byte[BufferPool.getPageSize()];
+        Arrays.fill(full, (byte) 0xFF);
+        for (int i = 0; i < FULL_PAGES; ++i) {
+            created.writePage(new HeapPage(new HeapPageId(created.getId(), i), full));
+        }
+        created.writePage(new HeapPage(new HeapPageId(created.getId(), FULL_PAGES),
+                HeapPage.createEmptyPageData()));
+        file = Utility.openHeapFile(2, created.getFile());
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * An insert goes straight to the page with room, without locking the
+     * full pages before it.
+     */
+    @Test public void insertSkipsFullPages() throws Exception {
+        Tuple t = Utility.getHeapTuple(1, 2);
+        file.insertTuple(tid, t);
+        assertEquals(FULL_PAGES, t.getRecordId().getPageId().getPageNumber());
+        for (int i = 0; i < FULL_PAGES; ++i) {
+            assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(file.getId(), i)));
+        }
+        assertEquals(FULL_PAGES, file.getFreeSpaceMap().nextFree(0));
+    }
+
+    /**
+     * A delete gives its page back to the inserts.
+     */
+    @Test public void deleteFreesPage() throws Exception {
+        Tuple victim = Utility.getHeapTuple(-1, 2);
+        victim.setRecordId(new RecordId(new HeapPageId(file.getId(), 1), 0));
+        Database.getBufferPool().deleteTuple(tid, victim);
+        assertEquals(1, file.getFreeSpaceMap().nextFree(0));
+
+        Tuple t = Utility.getHeapTuple(1, 2);
+        file.insertTuple(tid, t);
+        assertEquals(victim.getRecordId(), t.getRecordId());
+    }
+
+    /**
+     * A stale hint costs one look at the page, which is then left alone.
+     */
+    @Test public void staleHint() throws Exception {
+        file.getFreeSpaceMap().setFree(0, true);
+        Tuple t = Utility.getHeapTuple(1, 2);
+        file.insertTuple(tid, t);
+        assertEquals(FULL_PAGES, t.getRecordId().getPageId().getPageNumber());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(file.getId(), 0)));
+        assertEquals(FULL_PAGES, file.getFreeSpaceMap().nextFree(0));
+    }
+
+    /**
+     * The map is trusted as long as it was written for the heap file's
+     * current length, however the files' timestamps compare.
+     */
+    @Test public void staleByPageCount() throws Exception {
+        File heap = file.getFile();
+        assertTrue(heap.setLastModified(System.currentTimeMillis() + 60000));
+        assertEquals(FULL_PAGES, Utility.openHeapFile(2, heap).getFreeSpaceMap().nextFree(0));
+
+        // a page appended behind the map's back makes the map stale
+        try (RandomAccessFile raf = new RandomAccessFile(heap, "rw")) {
+            raf.setLength(raf.length() + BufferPool.getPageSize());
+        }
+        assertEquals(0, Utility.openHeapFile(2, heap).getFreeSpaceMap().nextFree(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
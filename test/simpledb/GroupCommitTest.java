@@ -0,0 +1,76 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.LogFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GroupCommitTest extends SimpleDbTestBase {
+
+    private static final int COMMITTERS = 8;
+    private static final long DELAY_MICROS = 200_000;
+
+    private LogFile log;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        File f = File.createTempFile("group", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    private void commit() throws Exception {
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+    }
+
+    /**
+     * A lone committer forces the log itself.
+     */
+    @Test public void singleCommit() throws Exception {
+        commit();
+        assertEquals(1, log.getForceCount());
+    }
+
+    /**
+     * Committers that arrive while the leader waits share its force, and
+     * are all released by it.
+     */
+    @Test public void commitsShareForce() throws Exception {
+        log.setMaxCommitDelayMicros(DELAY_MICROS);
+        CountDownLatch done = new CountDownLatch(COMMITTERS);
+        for (int i = 0; i < COMMITTERS; ++i) {
+            Thread t = new Thread(() -> {
+                try {
+                    commit();
+                    done.countDown();
+                } catch (Exception e) {
+                    // the latch stays closed
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(log.getForceCount() < COMMITTERS);
+        assertEquals(2 * COMMITTERS, log.getTotalRecords());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
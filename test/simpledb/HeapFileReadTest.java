@@ -81,6 +81,25 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPages()
+     */
+    @Test
+    public void readPages() throws Exception {
+        HeapFile fivePages = SystemTestUtil.createRandomHeapFile(2, 5 * 504, null, null);
+        int[] pageNos = {3, 0, 1, 4, 1, 2};
+        List<PageId> pids = new ArrayList<>();
+        for (int pageNo : pageNos)
+            pids.add(new HeapPageId(fivePages.getId(), pageNo));
+
+        List<Page> pages = fivePages.readPages(pids);
+        assertEquals(pids.size(), pages.size());
+        for (int i = 0; i < pids.size(); ++i) {
+            assertEquals(pids.get(i), pages.get(i).getId());
+            assertArrayEquals(fivePages.readPage(pids.get(i)).getPageData(), pages.get(i).getPageData());
+        }
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
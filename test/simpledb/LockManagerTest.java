@@ -0,0 +1,321 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Lock;
+import simpledb.storage.LockManager;
+import simpledb.storage.LockStats;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final int WAIT_MILLIS = 200;
+
+    private LockManager lm;
+    private PageId pid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        lm = new LockManager();
+        pid = new HeapPageId(1, 0);
+    }
+
+    /** Requests a lock on another thread; the latch opens once it is granted. */
+    private CountDownLatch request(TransactionId tid, Lock.LockType type) {
+        return request(tid, pid, type, new CountDownLatch(1));
+    }
+
+    /**
+     * Requests a lock on another thread; the returned latch opens once it is
+     * granted, the aborted latch once the request is aborted.
+     */
+    private CountDownLatch request(TransactionId tid, PageId pid, Lock.LockType type, CountDownLatch aborted) {
+        CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                lm.acquireLock(tid, pid, type);
+                granted.countDown();
+            } catch (TransactionAbortedException e) {
+                aborted.countDown();
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return granted;
+    }
+
+    private static boolean granted(CountDownLatch latch) throws InterruptedException {
+        return latch.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A reader that arrives after a waiting writer queues behind it, even
+     * though it is compatible with the current holder.
+     */
+    @Test public void fifo() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        TransactionId lateReader = new TransactionId();
+        lm.acquireLock(reader, pid, Lock.LockType.SHARED);
+
+        CountDownLatch w = request(writer, Lock.LockType.EXCLUSIVE);
+        assertFalse(granted(w));
+        CountDownLatch r = request(lateReader, Lock.LockType.SHARED);
+        assertFalse(granted(r));
+
+        lm.releaseAllLocks(reader);
+        assertTrue(granted(w));
+        assertFalse(granted(r));
+
+        lm.releaseAllLocks(writer);
+        assertTrue(granted(r));
+    }
+
+    /**
+     * An upgrade goes ahead of other waiting writers.
+     */
+    @Test public void upgradeFirst() throws Exception {
+        TransactionId upgrader = new TransactionId();
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        lm.acquireLock(upgrader, pid, Lock.LockType.SHARED);
+        lm.acquireLock(reader, pid, Lock.LockType.SHARED);
+
+        CountDownLatch w = request(writer, Lock.LockType.EXCLUSIVE);
+        assertFalse(granted(w));
+        CountDownLatch u = request(upgrader, Lock.LockType.EXCLUSIVE);
+        assertFalse(granted(u));
+
+        lm.releaseAllLocks(reader);
+        assertTrue(granted(u));
+        assertFalse(granted(w));
+        assertTrue(lm.holdsLock(upgrader, pid));
+    }
+
+    /**
+     * Releasing all of a transaction's locks leaves other transactions'
+     * locks alone and grants the requests that waited on it.
+     */
+    @Test public void releaseAll() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        lm.acquireLock(t1, pid, Lock.LockType.EXCLUSIVE);
+        lm.acquireLock(t1, new HeapPageId(2, 0), Lock.LockType.SHARED);
+        lm.acquireLock(t2, other, Lock.LockType.EXCLUSIVE);
+
+        CountDownLatch w = request(t2, Lock.LockType.SHARED);
+        assertFalse(granted(w));
+
+        lm.releaseAllLocks(t1);
+        assertTrue(granted(w));
+        assertFalse(lm.holdsLock(t1, pid));
+        assertFalse(lm.holdsLock(t1, new HeapPageId(2, 0)));
+        assertTrue(lm.holdsLock(t2, other));
+        assertTrue(lm.holdsLock(t2, pid));
+    }
+
+    /**
+     * The detector breaks a deadlock across two pages by aborting the younger
+     * transaction; the older one gets its lock once the victim's locks are
+     * released.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        lm.acquireLock(older, pid, Lock.LockType.EXCLUSIVE);
+        lm.acquireLock(younger, other, Lock.LockType.EXCLUSIVE);
+
+        CountDownLatch olderAborted = new CountDownLatch(1);
+        CountDownLatch youngerAborted = new CountDownLatch(1);
+        CountDownLatch o = request(older, other, Lock.LockType.EXCLUSIVE, olderAborted);
+        CountDownLatch y = request(younger, pid, Lock.LockType.EXCLUSIVE, youngerAborted);
+
+        assertTrue(youngerAborted.await(5, TimeUnit.SECONDS));
+        assertFalse(granted(o));
+        assertEquals(1, olderAborted.getCount());
+        assertEquals(1, y.getCount());
+        assertEquals(1, lm.getStats().getDeadlocks());
+        assertEquals(1, lm.getPageStats().get(pid).getAborts());
+
+        // without a BufferPool, aborting the victim is up to the caller
+        lm.releaseAllLocks(younger);
+        assertTrue(granted(o));
+    }
+
+    /**
+     * Under WAIT_DIE a younger transaction dies rather than wait for an
+     * older one, while an older one waits for a younger one.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        lm.acquireLock(older, pid, Lock.LockType.EXCLUSIVE);
+        lm.acquireLock(younger, other, Lock.LockType.EXCLUSIVE);
+
+        CountDownLatch olderAborted = new CountDownLatch(1);
+        CountDownLatch youngerAborted = new CountDownLatch(1);
+        CountDownLatch o = request(older, other, Lock.LockType.EXCLUSIVE, olderAborted);
+        assertFalse(granted(o));
+        request(younger, pid, Lock.LockType.SHARED, youngerAborted);
+        assertTrue(youngerAborted.await(5, TimeUnit.SECONDS));
+
+        lm.releaseAllLocks(younger);
+        assertTrue(granted(o));
+        assertEquals(1, olderAborted.getCount());
+    }
+
+    /**
+     * Under WOUND_WAIT an older transaction waits for a younger one and
+     * wounds it, so the younger one dies once it has to wait.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        lm.acquireLock(older, other, Lock.LockType.EXCLUSIVE);
+        lm.acquireLock(younger, pid, Lock.LockType.EXCLUSIVE);
+
+        CountDownLatch olderAborted = new CountDownLatch(1);
+        CountDownLatch youngerAborted = new CountDownLatch(1);
+        CountDownLatch o = request(older, pid, Lock.LockType.EXCLUSIVE, olderAborted);
+        assertFalse(granted(o));
+        request(younger, other, Lock.LockType.SHARED, youngerAborted);
+        assertTrue(youngerAborted.await(5, TimeUnit.SECONDS));
+
+        lm.releaseAllLocks(younger);
+        assertTrue(granted(o));
+        assertEquals(1, olderAborted.getCount());
+    }
+
+    /**
+     * Page locks come with intention locks on their table, which do not
+     * conflict with each other.
+     */
+    @Test public void intentionLocks() throws Exception {
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        lm.acquireLock(reader, pid, Lock.LockType.SHARED);
+        lm.acquireLock(writer, new HeapPageId(1, 1), Lock.LockType.EXCLUSIVE);
+
+        assertEquals(Lock.LockType.INTENTION_SHARED, lm.getTableLock(reader, 1));
+        assertEquals(Lock.LockType.INTENTION_EXCLUSIVE, lm.getTableLock(writer, 1));
+        assertNull(lm.getTableLock(reader, 2));
+        assertEquals(1, lm.getPageLockCount(reader, 1));
+    }
+
+    /**
+     * Crossing the escalation threshold trades the page locks for a table
+     * lock, which then keeps writers out of the whole table.
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(3);
+        TransactionId scanner = new TransactionId();
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 4; ++i) {
+            lm.acquireLock(scanner, new HeapPageId(1, i), Lock.LockType.SHARED);
+        }
+
+        assertEquals(Lock.LockType.SHARED, lm.getTableLock(scanner, 1));
+        assertEquals(0, lm.getPageLockCount(scanner, 1));
+        assertTrue(lm.holdsLock(scanner, new HeapPageId(1, 100)));
+
+        CountDownLatch w = request(writer, new HeapPageId(1, 100), Lock.LockType.EXCLUSIVE, new CountDownLatch(1));
+        assertFalse(granted(w));
+        lm.releaseAllLocks(scanner);
+        assertTrue(granted(w));
+        assertFalse(lm.holdsLock(scanner, new HeapPageId(1, 0)));
+    }
+
+    /**
+     * A request that waits past its transaction's lock timeout aborts the
+     * transaction and leaves the queue.
+     */
+    @Test public void lockTimeout() throws Exception {
+        TransactionId holder = new TransactionId();
+        TransactionId waiter = new TransactionId();
+        TransactionId next = new TransactionId();
+        lm.acquireLock(holder, pid, Lock.LockType.SHARED);
+        lm.setLockTimeout(waiter, 100);
+
+        CountDownLatch aborted = new CountDownLatch(1);
+        CountDownLatch w = request(waiter, pid, Lock.LockType.EXCLUSIVE, aborted);
+        assertTrue(aborted.await(5, TimeUnit.SECONDS));
+        assertEquals(1, w.getCount());
+
+        // the reader no longer queues behind the writer that gave up
+        lm.acquireLock(next, pid, Lock.LockType.SHARED);
+        assertTrue(lm.holdsLock(next, pid));
+    }
+
+    /**
+     * A transaction at its lock budget is aborted when it asks for a lock
+     * on one more object, but may still strengthen the locks it holds.
+     */
+    @Test public void lockBudget() throws Exception {
+        TransactionId tid = new TransactionId();
+        lm.setMaxLocks(tid, 3);
+        // the table's intention lock counts too
+        lm.acquireLock(tid, pid, Lock.LockType.SHARED);
+        lm.acquireLock(tid, new HeapPageId(1, 1), Lock.LockType.SHARED);
+        lm.acquireLock(tid, pid, Lock.LockType.EXCLUSIVE);
+        try {
+            lm.acquireLock(tid, new HeapPageId(1, 2), Lock.LockType.SHARED);
+            fail("expected the budget to abort the transaction");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(lm.holdsLock(tid, new HeapPageId(1, 2)));
+    }
+
+    /**
+     * A request that waits counts as a conflict of its page and table, and
+     * the page shows up as hot.
+     */
+    @Test public void contentionStats() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(t1, pid, Lock.LockType.EXCLUSIVE);
+        CountDownLatch w = request(t2, Lock.LockType.SHARED);
+        assertFalse(granted(w));
+        lm.releaseAllLocks(t1);
+        assertTrue(granted(w));
+
+        LockStats page = lm.getPageStats().get(pid);
+        assertEquals(2, page.getAcquisitions());
+        assertEquals(1, page.getConflicts());
+        assertTrue(page.getMaxWaitNanos() > 0);
+        assertEquals(page.getMaxWaitNanos(), page.getTotalWaitNanos());
+        // the table counts its intention locks and its pages' locks
+        assertEquals(4, lm.getTableStats().get(1).getAcquisitions());
+        assertEquals(1, lm.getTableStats().get(1).getConflicts());
+        assertEquals(pid, lm.getHotPages(10).get(0).getKey());
+
+        lm.resetStats();
+        assertEquals(0, lm.getStats().getAcquisitions());
+        assertTrue(lm.getHotPages(10).isEmpty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MappedHeapFileTest extends SimpleDbTestBase {
+
+    private MappedHeapFile table;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 3 * 504, 1000, null, tuples);
+        table = new MappedHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * Unit test for MappedHeapFile.readPage()
+     */
+    @Test public void readPage() throws Exception {
+        HeapFile plain = new HeapFile(table.getFile(), table.getTupleDesc());
+        for (int i = 0; i < table.numPages(); ++i) {
+            HeapPageId pid = new HeapPageId(table.getId(), i);
+            assertArrayEquals(plain.readPage(pid).getPageData(), table.readPage(pid).getPageData());
+        }
+        // past the end of the file
+        HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), table.numPages()));
+        assertEquals(504, page.getNumUnusedSlots());
+    }
+
+    /**
+     * Committed inserts reach the file, and the file grows past the part
+     * mapped so far; rolled back inserts never reach it.
+     */
+    @Test public void insertCommitAndAbort() throws Exception {
+        SystemTestUtil.matchTuples(table, tuples);
+
+        TransactionId tid = new TransactionId();
+        Tuple committed = Utility.getHeapTuple(new int[] {-1, -2});
+        Database.getBufferPool().insertTuple(tid, table.getId(), committed);
+        Database.getBufferPool().transactionComplete(tid);
+        tuples.add(SystemTestUtil.tupleToList(committed));
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, table.getId(), Utility.getHeapTuple(new int[] {-3, -4}));
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(4, table.numPages());
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /**
+     * An off-heap BufferPool still reads the table through its mappings
+     * rather than copying its pages into the arena.
+     */
+    @Test public void offHeapPool() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        MappedHeapFile counted = new MappedHeapFile(table.getFile(), table.getTupleDesc()) {
+            @Override
+            public Page readPage(PageId pid) {
+                reads.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(counted, SystemTestUtil.getUUID());
+        Database.resetBufferPool(new BufferPool(2, 1, ClockEvictionPolicy::new, BufferPool.FrameMode.OFF_HEAP));
+
+        SystemTestUtil.matchTuples(counted, tuples);
+        assertTrue(reads.get() >= counted.numPages());
+    }
+
+    /**
+     * A table marked mmap in the schema file gets this backend.
+     */
+    @Test public void catalog() throws Exception {
+        File dir = Files.createTempDirectory("mapped").toFile();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write("plain (a int, b int)\n");
+            w.write("mapped (a int, b int) mmap\n");
+        }
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+        new File(dir, "plain.dat").deleteOnExit();
+        new File(dir, "mapped.dat").deleteOnExit();
+
+        DbFile plain = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("plain"));
+        DbFile mapped = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId("mapped"));
+        assertEquals(HeapFile.class, plain.getClass());
+        assertEquals(MappedHeapFile.class, mapped.getClass());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MappedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,130 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class OffHeapBufferPoolTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 4;
+
+    private HeapFile table;
+    private List<List<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(2, 10 * 504, null, tuples);
+        Database.resetBufferPool(new BufferPool(POOL_PAGES, 1, ClockEvictionPolicy::new,
+                BufferPool.FrameMode.OFF_HEAP));
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A scan through a pool much smaller than the table returns every tuple.
+     */
+    @Test public void scan() throws Exception {
+        SystemTestUtil.matchTuples(table, tid, tuples);
+    }
+
+    /**
+     * A page that was evicted keeps its contents even though its frame was
+     * reused for other pages.
+     */
+    @Test public void evictedPageKeepsContents() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapPage first = (HeapPage) bp.getPage(tid, new HeapPageId(table.getId(), 0), Permissions.READ_ONLY);
+        byte[] before = first.getPageData();
+
+        for (int i = 1; i < table.numPages(); ++i)
+            bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+
+        assertArrayEquals(before, first.getPageData());
+        Iterator<Tuple> it = first.iterator();
+        for (int i = 0; i < 504; ++i)
+            assertEquals(tuples.get(i), SystemTestUtil.tupleToList(it.next()));
+    }
+
+    /**
+     * A reader that is iterating over a page while its frame is reused sees
+     * the page's own tuples throughout.
+     */
+    @Test public void readDuringFrameReuse() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId firstId = new HeapPageId(table.getId(), 0);
+        AtomicReference<HeapPage> reading = new AtomicReference<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<String> mismatch = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!stop.get() && mismatch.get() == null) {
+                HeapPage page = reading.get();
+                if (page == null)
+                    continue;
+                Iterator<Tuple> it = page.iterator();
+                for (int i = 0; i < 504 && mismatch.get() == null; ++i) {
+                    List<Integer> t = SystemTestUtil.tupleToList(it.next());
+                    if (!tuples.get(i).equals(t))
+                        mismatch.set("slot " + i + ": " + t);
+                }
+            }
+        });
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            for (int round = 0; round < 50; ++round) {
+                reading.set((HeapPage) bp.getPage(tid, firstId, Permissions.READ_ONLY));
+                for (int i = 1; i < table.numPages(); ++i)
+                    bp.getPage(tid, new HeapPageId(table.getId(), i), Permissions.READ_ONLY);
+            }
+        } finally {
+            stop.set(true);
+            reader.join();
+        }
+        assertNull(mismatch.get());
+    }
+
+    /**
+     * Inserts go into the arena frame and reach disk on commit.
+     */
+    @Test public void insertAndCommit() throws Exception {
+        Tuple t = Utility.getHeapTuple(new int[] {-1, -2});
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tuples.add(SystemTestUtil.tupleToList(t));
+        tid = new TransactionId();
+        Database.resetBufferPool(new BufferPool(POOL_PAGES, 1, ClockEvictionPolicy::new,
+                BufferPool.FrameMode.OFF_HEAP));
+        SystemTestUtil.matchTuples(table, tid, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OffHeapBufferPoolTest.class);
+    }
+}
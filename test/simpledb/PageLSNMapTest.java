@@ -0,0 +1,87 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class PageLSNMapTest extends SimpleDbTestBase {
+
+    private HeapFile file;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+    }
+
+    /** Returns a page 0 of the file whose first slots are used as given. */
+    private HeapPage page(int slots) throws Exception {
+        byte[] data = HeapPage.createEmptyPageData();
+        data[0] = (byte) slots;
+        return new HeapPage(new HeapPageId(file.getId(), 0), data);
+    }
+
+    private HeapPage written(int slots, long lsn) throws Exception {
+        HeapPage page = page(slots);
+        page.setLSN(lsn);
+        file.writePage(page);
+        return page;
+    }
+
+    private long lsnOf(HeapFile heap, HeapPage page) throws Exception {
+        return heap.getPageLSNMap().lsnOf(0, page.getPageData(), Database.getLogFile().getId());
+    }
+
+    /**
+     * A page's LSN is saved with it, and only goes with the image it was
+     * saved for under the log it is from.
+     */
+    @Test public void savedWithPage() throws Exception {
+        HeapPage page = written(1, 100);
+        assertEquals(100, lsnOf(file, page));
+        assertEquals(100, lsnOf(Utility.openHeapFile(2, file.getFile()), page));
+        assertEquals(0, lsnOf(file, page(3)));
+        assertEquals(0, file.getPageLSNMap().lsnOf(0, page.getPageData(), Database.getLogFile().getId() + 1));
+    }
+
+    /**
+     * The entry of the page on disk survives a write whose page never
+     * makes it there, and the next write, too.
+     */
+    @Test public void entryOfPageOnDiskKept() throws Exception {
+        HeapPage first = written(1, 100);
+        written(3, 200);
+        // as if the crash came between saving the LSN and writing the page
+        File heap = file.getFile();
+        try (RandomAccessFile raf = new RandomAccessFile(heap, "rw")) {
+            raf.write(first.getPageData());
+        }
+        assertEquals(100, lsnOf(Utility.openHeapFile(2, heap), first));
+
+        // a file opened again finds out which entry to keep from the page
+        HeapFile reopened = Utility.openHeapFile(2, heap);
+        HeapPage next = page(7);
+        next.setLSN(300);
+        reopened.writePage(next);
+        assertEquals(300, lsnOf(reopened, page(7)));
+        assertEquals(100, lsnOf(reopened, first));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageLSNMapTest.class);
+    }
+}
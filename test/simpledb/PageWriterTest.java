@@ -0,0 +1,113 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PageWriterTest extends SimpleDbTestBase {
+
+    /** Tuples of two int fields per page. */
+    private static final int SLOTS = 504;
+
+    private HeapFile table;
+    private List<List<Integer>> tuples;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        // ten full pages, so an insert goes to a new page 10
+        table = SystemTestUtil.createRandomHeapFile(2, 10 * SLOTS, null, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().stopPageWriter();
+    }
+
+    private Tuple insertAndCommit() throws Exception {
+        Tuple t = Utility.getHeapTuple(new int[] {-1, -2});
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        Database.getBufferPool().transactionComplete(tid);
+        tuples.add(SystemTestUtil.tupleToList(t));
+        tid = new TransactionId();
+        return t;
+    }
+
+    private int usedSlotsOnDisk(int pageNo) {
+        HeapPage page = (HeapPage) table.readPage(new HeapPageId(table.getId(), pageNo));
+        return SLOTS - page.getNumUnusedSlots();
+    }
+
+    /**
+     * A commit leaves its page to the writer, and the page is read back from
+     * the writer, not from disk, until the writer is stopped.
+     */
+    @Test public void commitDefersWrite() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.startPageWriter(3600 * 1000, 8, 100);
+        insertAndCommit();
+
+        assertEquals(1, bp.getPageWriter().getPendingCount());
+        assertEquals(0, usedSlotsOnDisk(10));
+
+        bp.removePage(new HeapPageId(table.getId(), 10));
+        SystemTestUtil.matchTuples(table, tid, tuples);
+
+        bp.stopPageWriter();
+        assertEquals(1, usedSlotsOnDisk(10));
+    }
+
+    /**
+     * With no room below the high-water mark, the commit writes the page
+     * itself.
+     */
+    @Test public void highWaterMark() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.startPageWriter(3600 * 1000, 8, 0);
+        insertAndCommit();
+
+        assertEquals(0, bp.getPageWriter().getPendingCount());
+        assertEquals(1, usedSlotsOnDisk(10));
+    }
+
+    /**
+     * The writer thread drains the queue on its own.
+     */
+    @Test public void background() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.startPageWriter(10, 8, 100);
+        insertAndCommit();
+
+        for (int i = 0; i < 500 && bp.getPageWriter().getPendingCount() > 0; ++i)
+            Thread.sleep(10);
+        assertEquals(0, bp.getPageWriter().getPendingCount());
+        assertEquals(1, usedSlotsOnDisk(10));
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        SystemTestUtil.matchTuples(table, tid, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
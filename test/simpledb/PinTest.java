@@ -0,0 +1,122 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class PinTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 6;
+
+    private HeapFile table;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * 504, null, null);
+        bp = Database.resetBufferPool(2);
+        tid = new TransactionId();
+    }
+
+    private HeapPageId pid(int pageNo) {
+        return new HeapPageId(table.getId(), pageNo);
+    }
+
+    /**
+     * A pinned page stays cached while the rest of the pool turns over, and
+     * can be evicted again once it is unpinned.
+     */
+    @Test public void pinnedPageStays() throws Exception {
+        Page pinned = bp.getPinnedPage(tid, pid(0), Permissions.READ_ONLY);
+        for (int i = 1; i < TABLE_PAGES; ++i)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(pid(0)));
+        assertSame(pinned, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, pid(0));
+        assertEquals(0, bp.getPinCount(pid(0)));
+        for (int i = 1; i < TABLE_PAGES; ++i)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertNotSame(pinned, bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Eviction fails rather than drop a pinned page, and completing the
+     * transaction releases its pins.
+     */
+    @Test public void allPinned() throws Exception {
+        bp.getPinnedPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.getPinnedPage(tid, pid(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+            fail("expected exception");
+        } catch (DbException ignored) {
+        }
+
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(0, bp.getPinCount(pid(1)));
+        tid = new TransactionId();
+        bp.getPage(tid, pid(2), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A heap file change keeps its page pinned only until it is logged,
+     * also when the change fails.
+     */
+    @Test public void changePinReleased() throws Exception {
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        bp.insertTuple(tid, table.getId(), t);
+        PageId changed = t.getRecordId().getPageId();
+        assertEquals(0, bp.getPinCount(changed));
+
+        bp.deleteTuple(tid, t);
+        try {
+            bp.deleteTuple(tid, t);
+            fail("expected exception");
+        } catch (DbException ignored) {
+        }
+        assertEquals(0, bp.getPinCount(changed));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A heap file scan keeps exactly the page it is on pinned.
+     */
+    @Test public void iteratorPinsCurrentPage() throws Exception {
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        it.next();
+        assertEquals(1, bp.getPinCount(pid(0)));
+        for (int i = 0; i < 504; ++i)
+            it.next();
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(1, bp.getPinCount(pid(1)));
+        it.close();
+        assertEquals(0, bp.getPinCount(pid(1)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PinTest.class);
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReadAheadTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 40;
+    /** Tuples of two int fields per page. */
+    private static final int SLOTS = 504;
+
+    private HeapFile table;
+    private List<List<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        tuples = new ArrayList<>();
+        table = SystemTestUtil.createRandomHeapFile(2, TABLE_PAGES * SLOTS, null, tuples);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private List<List<Integer>> scan(HeapFileIt it, int stopAfter, Runnable atStop) throws Exception {
+        List<List<Integer>> seen = new ArrayList<>();
+        while (it.hasNext())
+        {
+            seen.add(SystemTestUtil.tupleToList(it.next()));
+            if (seen.size() == stopAfter)
+                atStop.run();
+        }
+        return seen;
+    }
+
+    /**
+     * A cold sequential scan gets all but its first pages from the
+     * read-ahead.
+     */
+    @Test public void coldScan() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapFileIt it = (HeapFileIt) table.iterator(tid);
+        it.open();
+        assertEquals(tuples, scan(it, -1, null));
+        assertTrue(it.getReadAhead().getPagesServed() >= TABLE_PAGES - ReadAhead.TRIGGER_PAGES);
+        it.close();
+
+        // a warm scan does not read ahead
+        it.open();
+        scan(it, -1, null);
+        assertEquals(0, it.getReadAhead().getPagesServed());
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Pages read ahead before the file was written to are not used.
+     */
+    @Test public void staleWindow() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapFileIt it = (HeapFileIt) table.iterator(tid);
+        it.open();
+        // empty page 20 on disk while the scan is in its first window
+        List<List<Integer>> seen = scan(it, 2 * SLOTS + 1, () -> {
+            try {
+                table.writePage(new HeapPage(new HeapPageId(table.getId(), 20),
+                        HeapPage.createEmptyPageData()));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        List<List<Integer>> expected = new ArrayList<>(tuples.subList(0, 20 * SLOTS));
+        expected.addAll(tuples.subList(21 * SLOTS, tuples.size()));
+        assertEquals(expected, seen);
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
@@ -0,0 +1,157 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RecordLockingTest extends SimpleDbTestBase {
+
+    private static final int WAIT_MILLIS = 200;
+
+    private HeapFile file;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = SystemTestUtil.createRandomHeapFile(2, 2, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setRecordLocking(true);
+    }
+
+    /** Runs a change on another thread; the latch opens once it returns. */
+    private static CountDownLatch run(Change change) {
+        CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                change.run();
+                done.countDown();
+            } catch (Exception e) {
+                // the latch stays closed
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return done;
+    }
+
+    private interface Change {
+        void run() throws Exception;
+    }
+
+    private static boolean done(CountDownLatch latch) throws InterruptedException {
+        return latch.await(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Returns the first field of every tuple of the file. */
+    private List<Integer> values() throws Exception {
+        TransactionId tid = new TransactionId();
+        List<Integer> values = new ArrayList<>();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        return values;
+    }
+
+    private Tuple firstTuple() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        bp.transactionComplete(tid);
+        return t;
+    }
+
+    /**
+     * Two transactions insert into the same page without waiting for each
+     * other.
+     */
+    @Test public void concurrentInserts() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        Tuple a = Utility.getHeapTuple(-1, 2);
+        Tuple b = Utility.getHeapTuple(-2, 2);
+        bp.insertTuple(t1, file.getId(), a);
+        assertTrue(done(run(() -> bp.insertTuple(t2, file.getId(), b))));
+        assertEquals(a.getRecordId().getPageId(), b.getRecordId().getPageId());
+        assertNotEquals(a.getRecordId(), b.getRecordId());
+
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t2);
+        assertEquals(4, values().size());
+    }
+
+    /**
+     * An abort takes back only the aborted transaction's records of a page
+     * another transaction changed as well.
+     */
+    @Test public void abortUndoesOwnRecords() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t1, file.getId(), Utility.getHeapTuple(-1, 2));
+        bp.insertTuple(t2, file.getId(), Utility.getHeapTuple(-2, 2));
+        bp.transactionComplete(t1, true);
+        bp.transactionComplete(t2, false);
+
+        List<Integer> values = values();
+        assertEquals(3, values.size());
+        assertTrue(values.contains(-1));
+        assertFalse(values.contains(-2));
+    }
+
+    /**
+     * The slot of an uncommitted delete is not reused, and a second delete
+     * of the record waits for the first transaction.
+     */
+    @Test public void deletedSlotStaysLocked() throws Exception {
+        Tuple victim = firstTuple();
+        TransactionId t1 = new TransactionId();
+        bp.deleteTuple(t1, victim);
+
+        TransactionId t2 = new TransactionId();
+        Tuple a = Utility.getHeapTuple(-1, 2);
+        bp.insertTuple(t2, file.getId(), a);
+        assertNotEquals(victim.getRecordId(), a.getRecordId());
+        bp.transactionComplete(t2);
+
+        TransactionId t3 = new TransactionId();
+        CountDownLatch deleted = run(() -> bp.deleteTuple(t3, victim));
+        assertFalse(done(deleted));
+
+        // the abort puts the record back, and then t3 can delete it
+        bp.transactionComplete(t1, false);
+        assertTrue(done(deleted));
+        bp.transactionComplete(t3);
+        assertEquals(2, values().size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
@@ -0,0 +1,229 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RecoveryTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 10;
+    private static final int MAGIC = -7;
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        file = hf.getFile();
+    }
+
+    /** Counts the rows whose first field is the given value, or all rows for null. */
+    private int count(Integer value) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (value == null || t.getField(0).equals(new IntField(value))) {
+                ++n;
+            }
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    private void insert(TransactionId tid, int rows) throws Exception {
+        for (int i = 0; i < rows; ++i) {
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(MAGIC, 2));
+        }
+    }
+
+    /** Drops the BufferPool without writing anything and recovers from the log. */
+    private void crash() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * A commit forces only the log; recovery redoes the change.
+     */
+    @Test public void commitWithoutForce() throws Exception {
+        TransactionId tid = new TransactionId();
+        insert(tid, 1);
+        long length = file.length();
+        long modified = file.lastModified();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(length, file.length());
+        assertEquals(modified, file.lastModified());
+
+        crash();
+        assertEquals(1, count(MAGIC));
+    }
+
+    /**
+     * A page written out before its transaction finished is rolled back at
+     * abort, and by recovery if the transaction never finished.
+     */
+    @Test public void stolenPagesUndone() throws Exception {
+        Database.resetBufferPool(1);
+        TransactionId tid = new TransactionId();
+        insert(tid, 1);
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(0, count(MAGIC));
+
+        tid = new TransactionId();
+        insert(tid, 1);
+        Database.getBufferPool().flushAllPages();
+        crash();
+        assertEquals(0, count(MAGIC));
+        assertEquals(ROWS, count(null));
+    }
+
+    /**
+     * An abort reads its pages back in through the partitions, without the
+     * BufferPool monitor that another thread holds.
+     */
+    @Test public void abortWithoutPoolMonitor() throws Exception {
+        Database.resetBufferPool(1);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        insert(tid, 1);
+        bp.flushAllPages();
+
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            synchronized (bp) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        holder.setDaemon(true);
+        holder.start();
+        assertTrue(held.await(1, TimeUnit.SECONDS));
+
+        CountDownLatch done = new CountDownLatch(1);
+        Thread aborter = new Thread(() -> {
+            bp.transactionComplete(tid, false);
+            done.countDown();
+        });
+        aborter.setDaemon(true);
+        aborter.start();
+        try {
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        assertEquals(0, count(MAGIC));
+    }
+
+    /**
+     * A transaction can change more pages than the BufferPool holds.
+     */
+    @Test public void largeTransaction() throws Exception {
+        int rows = 2000;
+        Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        insert(tid, rows);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(rows, count(MAGIC));
+
+        crash();
+        assertEquals(rows, count(MAGIC));
+        assertEquals(ROWS + rows, count(null));
+    }
+
+    /**
+     * A record updated and then deleted, with the delete written out before
+     * the crash, is not updated again by redo.
+     */
+    @Test public void redoUpdateOfDeletedRecord() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        Database.getBufferPool().updateField(tid, t.getRecordId(), 0, new IntField(MAGIC));
+        t.setField(0, new IntField(MAGIC));
+        Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        assertEquals(0, count(MAGIC));
+        assertEquals(ROWS - 1, count(null));
+    }
+
+    /**
+     * A record inserted and updated by a transaction that aborts after its
+     * page was written out is taken back once: the rollback is on disk
+     * with the page's LSN, and recovery does not undo the changes again.
+     */
+    @Test public void rollbackWrittenOut() throws Exception {
+        Database.resetBufferPool(1);
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(MAGIC, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().updateField(tid, t.getRecordId(), 1, new IntField(MAGIC));
+        Database.getBufferPool().flushAllPages();
+        Database.getBufferPool().transactionComplete(tid, false);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        assertEquals(0, count(MAGIC));
+        assertEquals(ROWS, count(null));
+    }
+
+    /**
+     * A rollback cut short by a crash is finished by recovery, which takes
+     * back only what the rollback had not.
+     */
+    @Test public void rollbackCutShort() throws Exception {
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(MAGIC, 2);
+        Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        Database.getBufferPool().updateField(tid, t.getRecordId(), 1, new IntField(MAGIC));
+        Database.getBufferPool().flushAllPages();
+        // the changes are taken back, but the ABORT record never written
+        Database.getLogFile().rollback(tid);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        assertEquals(0, count(MAGIC));
+        assertEquals(ROWS, count(null));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecoveryTest.class);
+    }
+}
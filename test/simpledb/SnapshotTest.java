@@ -0,0 +1,186 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SnapshotTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 10;
+    private static final int WAIT_MILLIS = 200;
+
+    private HeapFile file;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = file.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        return n;
+    }
+
+    private void insert(TransactionId tid) throws Exception {
+        bp.insertTuple(tid, file.getId(), Utility.getHeapTuple(-1, 2));
+    }
+
+    /**
+     * A snapshot does not see commits published after it began, while a
+     * snapshot begun later does.
+     */
+    @Test public void laterCommitsInvisible() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(ROWS, count(reader));
+
+        TransactionId writer = new TransactionId();
+        insert(writer);
+        bp.transactionComplete(writer);
+        assertEquals(ROWS, count(reader));
+
+        TransactionId later = new TransactionId();
+        bp.beginSnapshot(later);
+        assertEquals(ROWS + 1, count(later));
+        bp.transactionComplete(later);
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * B+ tree pages are not versioned, so a snapshot pins them as any
+     * reader does, and unpins them again.
+     */
+    @Test public void bTreePinsReleased() throws Exception {
+        BTreeFile tree = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        // building the tree replaced the BufferPool
+        bp = Database.getBufferPool();
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        DbFileIterator it = tree.iterator(reader);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            ++n;
+        }
+        it.close();
+        assertEquals(2000, n);
+        for (int i = 1; i <= tree.numPages(); ++i) {
+            assertEquals(0, bp.getPinCount(new BTreePageId(tree.getId(), i, BTreePageId.LEAF)));
+        }
+        bp.transactionComplete(reader);
+    }
+
+    /** Runs a task on another thread; the latch opens once it returns. */
+    private static CountDownLatch run(Task task) {
+        CountDownLatch done = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                task.run();
+                done.countDown();
+            } catch (Exception e) {
+                // the latch stays closed
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return done;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * A writer does not wait for a snapshot that read its page, and a
+     * snapshot reads past the writer's exclusive lock without waiting and
+     * without seeing its uncommitted changes.
+     */
+    @Test public void readersAndWritersDoNotBlock() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        assertEquals(ROWS, count(reader));
+
+        TransactionId writer = new TransactionId();
+        CountDownLatch written = run(() -> insert(writer));
+        assertTrue(written.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+
+        AtomicInteger seen = new AtomicInteger();
+        CountDownLatch read = run(() -> seen.set(count(reader)));
+        assertTrue(read.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(ROWS, seen.get());
+
+        bp.transactionComplete(writer);
+        assertEquals(ROWS, count(reader));
+        bp.transactionComplete(reader);
+    }
+
+    /**
+     * Versions are kept only while a snapshot may read them.
+     */
+    @Test public void versionsCollected() throws Exception {
+        TransactionId writer = new TransactionId();
+        insert(writer);
+        bp.transactionComplete(writer);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        writer = new TransactionId();
+        insert(writer);
+        bp.transactionComplete(writer);
+        assertEquals(1, bp.getVersionStore().getVersionCount());
+
+        bp.transactionComplete(reader);
+        assertEquals(0, bp.getVersionStore().getVersionCount());
+    }
+
+    /**
+     * A snapshot transaction cannot write.
+     */
+    @Test(expected = DbException.class) public void snapshotCannotWrite() throws Exception {
+        TransactionId reader = new TransactionId();
+        bp.beginSnapshot(reader);
+        try {
+            insert(reader);
+        } finally {
+            bp.transactionComplete(reader);
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SnapshotTest.class);
+    }
+}
@@ -378,6 +378,7 @@ public class TestUtil {
                 throw new RuntimeException(e);
             }
             emptyFile.deleteOnExit();
+            new File(emptyFile.getPath() + FreeSpaceMap.SUFFIX).deleteOnExit();
         }
 
         protected void setUp() throws Exception {
@@ -0,0 +1,121 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TupleDeltaTest extends SimpleDbTestBase {
+
+    private HeapFile file;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        file = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        bp = Database.getBufferPool();
+    }
+
+    private HeapPage emptyPage() throws Exception {
+        return new HeapPage(new HeapPageId(file.getId(), 0), HeapPage.createEmptyPageData());
+    }
+
+    private static int value(HeapPage page, int field) {
+        return ((IntField) page.iterator().next().getField(field)).getValue();
+    }
+
+    /**
+     * Undo takes back what redo did, and doing either twice does no harm.
+     */
+    @Test public void redoUndo() throws Exception {
+        HeapPage page = emptyPage();
+        byte[] empty = page.getPageData();
+        Tuple t = Utility.getHeapTuple(new int[]{1, 2});
+        t.setRecordId(new RecordId(page.getId(), 3));
+
+        TupleDelta insert = TupleDelta.insert(t);
+        insert.redo(page);
+        insert.redo(page);
+        assertTrue(page.isSlotUsed(3));
+        assertEquals(1, value(page, 0));
+
+        TupleDelta update = TupleDelta.update(t.getRecordId(), 1, new IntField(2), new IntField(7));
+        update.redo(page);
+        assertEquals(7, value(page, 1));
+        update.undo(page);
+        update.undo(page);
+        assertEquals(2, value(page, 1));
+
+        TupleDelta delete = TupleDelta.delete(t);
+        delete.redo(page);
+        assertFalse(page.isSlotUsed(3));
+        delete.undo(page);
+        assertEquals(1, value(page, 0));
+
+        insert.undo(page);
+        assertTrue(Arrays.equals(empty, page.getPageData()));
+    }
+
+    /**
+     * Changing a record through the BufferPool logs a few dozen bytes
+     * rather than whole pages.
+     */
+    @Test public void smallLogRecords() throws Exception {
+        LogFile log = Database.getLogFile();
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(tid, file.getId(), t);
+
+        long before = log.nextLSN();
+        bp.updateField(tid, t.getRecordId(), 1, new IntField(5));
+        bp.insertTuple(tid, file.getId(), Utility.getHeapTuple(2, 2));
+        bp.deleteTuple(tid, t);
+        assertTrue(log.nextLSN() - before < BufferPool.getPageSize() / 16);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A field update changes the record in place and, under record
+     * locking, an abort takes it back.
+     */
+    @Test public void updateField() throws Exception {
+        TransactionId tid = new TransactionId();
+        Tuple t = Utility.getHeapTuple(1, 2);
+        bp.insertTuple(tid, file.getId(), t);
+        bp.transactionComplete(tid);
+
+        HeapPageId pid = (HeapPageId) t.getRecordId().getPageId();
+        bp.setRecordLocking(true);
+        try {
+            tid = new TransactionId();
+            bp.updateField(tid, t.getRecordId(), 0, new IntField(9));
+            assertEquals(9, value((HeapPage) bp.getPageForRecords(tid, pid), 0));
+            bp.transactionComplete(tid, false);
+        } finally {
+            bp.setRecordLocking(false);
+        }
+
+        tid = new TransactionId();
+        assertEquals(1, value((HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY), 0));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(TupleDeltaTest.class);
+    }
+}
@@ -61,7 +61,8 @@ public class AbortEvictionTest extends SimpleDbTestBase {
     }
 
     /** Aborts a transaction and ensures that its effects were actually undone.
-     * This requires dirty pages to <em>not</em> get flushed to disk.
+     * The scan writes the dirty page out, so the abort must roll it back
+     * from the log.
      */
     @Test public void testDoNotEvictDirtyPages()
             throws IOException, DbException, TransactionAbortedException {
@@ -0,0 +1,102 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager.DeadlockPolicy;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares the LockManager's deadlock policies on a BTreeDeadlockTest-style
+ * workload: concurrent transactions that read a few pages of a small hot
+ * set and then write some of them, so that two transactions reading the
+ * same page and then upgrading their locks deadlock. Reports committed
+ * transactions per second and the fraction of attempts that were aborted;
+ * an aborted transaction is retried under its old id, so it ages and cannot
+ * starve under WAIT_DIE.
+ * <p>
+ * Run with <code>ant runbench -Dbench=DeadlockPolicyBenchmark</code>.
+ */
+public class DeadlockPolicyBenchmark {
+    private static final int HOT_PAGES = 32;
+    private static final int READS_PER_TRANSACTION = 4;
+    private static final int WRITES_PER_TRANSACTION = 2;
+    private static final int[] THREADS = {2, 4, 8, 16};
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        HeapFile table = createEmptyHeapFile(HOT_PAGES);
+
+        System.out.printf("%-11s %8s %12s %10s%n", "policy", "threads", "commits/s", "aborted");
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            for (int threads : THREADS) {
+                run(policy, threads, table);
+            }
+        }
+    }
+
+    private static void run(DeadlockPolicy policy, int threads, HeapFile table) throws InterruptedException {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.lockManager.setDeadlockPolicy(policy);
+
+        AtomicLong commits = new AtomicLong();
+        AtomicLong aborts = new AtomicLong();
+        long deadline = System.currentTimeMillis() + RUN_MILLIS;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            Random r = new Random(i);
+            workers[i] = new Thread(() -> {
+                TransactionId tid = new TransactionId();
+                while (System.currentTimeMillis() < deadline) {
+                    int[] pages = new int[READS_PER_TRANSACTION];
+                    try {
+                        for (int j = 0; j < pages.length; ++j) {
+                            pages[j] = r.nextInt(HOT_PAGES);
+                            bp.getPage(tid, new HeapPageId(table.getId(), pages[j]), Permissions.READ_ONLY);
+                        }
+                        for (int j = 0; j < WRITES_PER_TRANSACTION; ++j) {
+                            bp.getPage(tid, new HeapPageId(table.getId(), pages[j]), Permissions.READ_WRITE);
+                        }
+                        bp.transactionComplete(tid);
+                        commits.incrementAndGet();
+                        tid = new TransactionId();
+                    } catch (TransactionAbortedException e) {
+                        // the lock manager has aborted the transaction already
+                        aborts.incrementAndGet();
+                    } catch (Exception e) {
+                        bp.transactionComplete(tid, false);
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        long attempts = commits.get() + aborts.get();
+        System.out.printf("%-11s %8d %12.1f %9.1f%%%n", policy, threads,
+                commits.get() * 1000.0 / RUN_MILLIS, 100.0 * aborts.get() / Math.max(1, attempts));
+    }
+
+    private static HeapFile createEmptyHeapFile(int numPages) throws IOException {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength((long) numPages * BufferPool.getPageSize());
+        }
+        return Utility.openHeapFile(2, f);
+    }
+}
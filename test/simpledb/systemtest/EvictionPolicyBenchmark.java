@@ -0,0 +1,81 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares the hit ratios of the BufferPool eviction policies on a mixed
+ * workload: random point lookups against a small hot set of pages,
+ * interleaved with sequential scans over a much larger cold region.
+ * <p>
+ * Run with <code>ant runbench -Dbench=EvictionPolicyBenchmark</code>.
+ */
+public class EvictionPolicyBenchmark {
+    private static final int POOL_PAGES = 100;
+    private static final int HOT_PAGES = 60;
+    private static final int COLD_PAGES = 2000;
+    private static final int SCAN_LENGTH = 300;
+    private static final int LOOKUPS_PER_ROUND = 500;
+    private static final int ROUNDS = 40;
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        HeapFile table = createEmptyHeapFile(HOT_PAGES + COLD_PAGES);
+
+        System.out.printf("%-8s %12s %12s%n", "policy", "hit ratio", "hot hits");
+        run("CLOCK", table, ClockEvictionPolicy::new);
+        run("LRU-2", table, LruKEvictionPolicy::new);
+        run("2Q", table, TwoQueueEvictionPolicy::new);
+    }
+
+    private static void run(String name, HeapFile table, IntFunction<EvictionPolicy> policy)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = new BufferPool(POOL_PAGES, policy);
+        Random r = new Random(42);
+        long hotHits = 0;
+        long hotLookups = 0;
+        int scanStart = 0;
+
+        for (int round = 0; round < ROUNDS; ++round) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < LOOKUPS_PER_ROUND; ++i) {
+                long before = bp.getHitCount();
+                bp.getPage(tid, new HeapPageId(table.getId(), r.nextInt(HOT_PAGES)), Permissions.READ_ONLY);
+                hotHits += bp.getHitCount() - before;
+                hotLookups++;
+
+                // the scan advances one page every few lookups
+                if (i % (LOOKUPS_PER_ROUND / SCAN_LENGTH + 1) == 0) {
+                    int pgNo = HOT_PAGES + scanStart;
+                    bp.getPage(tid, new HeapPageId(table.getId(), pgNo), Permissions.READ_ONLY);
+                    scanStart = (scanStart + 1) % COLD_PAGES;
+                }
+            }
+            bp.transactionComplete(tid);
+        }
+
+        long total = bp.getHitCount() + bp.getMissCount();
+        System.out.printf("%-8s %11.1f%% %11.1f%%%n", name,
+                100.0 * bp.getHitCount() / total, 100.0 * hotHits / hotLookups);
+    }
+
+    private static HeapFile createEmptyHeapFile(int numPages) throws IOException {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength((long) numPages * BufferPool.getPageSize());
+        }
+        return Utility.openHeapFile(2, f);
+    }
+}
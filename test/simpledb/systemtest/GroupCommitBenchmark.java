@@ -0,0 +1,63 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.storage.LogFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures LogFile commit throughput under group commit: concurrent
+ * threads each log empty transactions (a BEGIN and a COMMIT record) in a
+ * loop, so the time goes to forcing the log. Reports commits per second
+ * and commits per force for each thread count and batch delay; with one
+ * force per commit, throughput would stay flat as threads are added.
+ * <p>
+ * Run with <code>ant runbench -Dbench=GroupCommitBenchmark</code>.
+ */
+public class GroupCommitBenchmark {
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+    private static final long[] DELAY_MICROS = {0, 100, 1000};
+    private static final long RUN_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%-11s %8s %12s %12s%n", "delay(us)", "threads", "commits/s", "per force");
+        for (long delay : DELAY_MICROS) {
+            for (int threads : THREADS) {
+                run(delay, threads);
+            }
+        }
+    }
+
+    private static void run(long delay, int threads) throws Exception {
+        File f = File.createTempFile("bench", ".log");
+        f.deleteOnExit();
+        LogFile log = new LogFile(f);
+        log.setMaxCommitDelayMicros(delay);
+
+        AtomicLong commits = new AtomicLong();
+        long deadline = System.currentTimeMillis() + RUN_MILLIS;
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            workers[i] = new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        TransactionId tid = new TransactionId();
+                        log.logXactionBegin(tid);
+                        log.logCommit(tid);
+                        commits.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[i].start();
+        }
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        System.out.printf("%-11d %8d %12.1f %12.1f%n", delay, threads,
+                commits.get() * 1000.0 / RUN_MILLIS, (double) commits.get() / Math.max(1, log.getForceCount()));
+    }
+}